@@ -1,10 +1,17 @@
 package jcmint;
 
 public class Consts {
-    public final static byte MAX_PARTIES = 5;
+    public final static byte MAX_PARTIES = 16;
+    public final static byte CACHED_PARTIES = 3;  // Largest federation whose partial keys are kept in RAM
+    public final static byte PROOFS_PER_COMMAND = 5;  // Parties whose proofs fit in one command, larger federations submit them in chunks
+    public final static byte MAX_BATCH = 8;
+    public final static short LEDGER_CAPACITY = 256;
+    public final static byte MAX_AMOUNTS = 64;  // Denominations 2^0 to 2^63, all derived from the keyset's master secret
+    public final static short NONCE_POOL_SIZE = 16;
     public static final byte[] H2C_DOMAIN_SEPARATOR = {(byte) 0x53, (byte) 0x65, (byte) 0x63, (byte) 0x70, (byte) 0x32, (byte) 0x35, (byte) 0x36, (byte) 0x6b, (byte) 0x31, (byte) 0x5f, (byte) 0x48, (byte) 0x61, (byte) 0x73, (byte) 0x68, (byte) 0x54, (byte) 0x6f, (byte) 0x43, (byte) 0x75, (byte) 0x72, (byte) 0x76, (byte) 0x65, (byte) 0x5f, (byte) 0x43, (byte) 0x61, (byte) 0x73, (byte) 0x68, (byte) 0x75, (byte) 0x5f};
 
     public static final byte CLA_JCMINT = (byte) 0x00;
+    public static final byte CLA_CHAINING = (byte) 0x10;
 
     public static final byte INS_SETUP = (byte) 0x00;
     public static final byte INS_ISSUE = (byte) 0x01;
@@ -16,6 +23,27 @@ public class Consts {
     public static final byte INS_REDEEM_SINGLE = (byte) 0x07;
     public static final byte INS_NOP = (byte) 0x08;
     public static final byte INS_ISSUE_SINGLE_DLEQ = (byte) 0x09;
+    public static final byte INS_ROTATE = (byte) 0x0a;
+    public static final byte INS_ISSUE_BATCH = (byte) 0x0b;
+    public static final byte INS_SWAP_BATCH = (byte) 0x0c;
+    public static final byte INS_REDEEM_BATCH = (byte) 0x0d;
+    public static final byte INS_PRECOMPUTE = (byte) 0x0e;
+    public static final byte INS_WARMUP = (byte) 0x0f;
+    public static final byte INS_POINT_FORMAT = (byte) 0x10;
+    public static final byte INS_PROOFS = (byte) 0x11;
+    public static final byte INS_KEYS = (byte) 0x13;
+
+    public static final byte ITEM_PRECOMPUTED = (byte) 0x80;
+    public static final byte ITEM_LENGTH_MASK = (byte) 0x7f;
+    public static final byte INS_GET_RESPONSE = (byte) 0xc0;
+
+    public static final byte P2_DENOMINATION_MASK = (byte) 0x7f;
+    public static final byte P2_RETIRING = (byte) 0x80;
+    public static final byte P1_BATCH_PROOFS = (byte) 0x01;
+    public static final byte P1_DLEQ = (byte) 0x80;
+    public static final byte P1_AMOUNTS = (byte) 0x40;
+    public static final byte P1_COMPRESSED = (byte) 0x01;
+    public static final byte INSTALL_PERSISTENT_VERIFYING = (byte) 0x01;  // Keep the verification context in EEPROM instead of RAM
 
     public final static short E_ALREADY_INITIALIZED = (short) 0xee00;
     public final static short E_INVALID_PARTY_COUNT = (short) 0xee01;
@@ -24,6 +52,14 @@ public class Consts {
     public final static short E_VERIFICATION_FAILED_PROOF = (short) 0xee04;
     public final static short E_VERIFICATION_FAILED_TOKEN = (short) 0xee05;
     public final static short E_INVALID_PRECOMPUTE = (short) 0xee06;
+    public final static short E_LEDGER_FULL = (short) 0xee07;
+    public final static short E_INVALID_KEYSET = (short) 0xee08;
+    public final static short E_UNBALANCED = (short) 0xee09;
+    public final static short E_MISSING_PROOFS = (short) 0xee0a;
+    public final static short E_INVALID_SIGNERS = (short) 0xee0b;
+    public final static short E_SINGLE_PARTY_AMOUNT = (short) 0xee0c;  // Amounts other than 0 need a single-party mint
+    public final static short E_INVALID_SHARES = (short) 0xee0d;  // Public keys of a threshold mint are not shares of one secret
+    public final static short E_VERIFICATION_FAILED_PARTY = (short) 0xee10;  // Low nibble: index of the party
 
     public final static short SW_Exception = (short) 0xff01;
     public final static short SW_ArrayIndexOutOfBoundsException = (short) 0xff02;
@@ -1,20 +1,61 @@
 package jcmint;
 
+import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
-import javacard.framework.Util;
 import jcmint.jcmathlib.*;
 
+/**
+ * The denominations hold two keysets, each covering every amount: the active one, used for issuing, and optionally
+ * the retiring one, whose tokens can still be swapped or redeemed until the next rotation.
+ */
 public class Denomination {
-    public final BigNat secret;
-    public final byte[] partialKeys;
+    private static final byte NONE = (byte) -1;
 
-    public Denomination(ResourceManager rm) {
-        secret = new BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, rm);
-        partialKeys = new byte[65 * Consts.MAX_PARTIES];
+    private final Keyset[] keysets = new Keyset[2];
+    private byte active = 0;
+    private byte retiring = NONE;
+
+    public Denomination(ECCurve curve, ResourceManager rm, byte maxParties, KeyDerivation derivation) {
+        for (short i = 0; i < (short) keysets.length; ++i) {
+            keysets[i] = new Keyset(curve, rm, maxParties, derivation);
+        }
     }
 
     public void setup(short parties, byte[] secret, short secretOffset, byte[] partialKeys, short partialKeysOffset) {
-        this.secret.fromByteArray(secret, secretOffset, (short) 32);
-        Util.arrayCopyNonAtomic(partialKeys, partialKeysOffset, this.partialKeys, (short) 0, (short) (65 * parties));
+        retiring = NONE;
+        keysets[active].setup(parties, secret, secretOffset, partialKeys, partialKeysOffset);
+    }
+
+    /**
+     * Installs a fresh keyset as active and keeps the current one as retiring.
+     * The previous retiring keyset, if any, is dropped together with its ledger.
+     */
+    public void rotate(short parties, byte[] secret, short secretOffset, byte[] partialKeys, short partialKeysOffset) {
+        byte next = (byte) (1 - active);
+
+        // Drop the old retiring keyset first, so that its slot is unreferenced while being overwritten
+        retiring = NONE;
+        keysets[next].setup(parties, secret, secretOffset, partialKeys, partialKeysOffset);
+
+        JCSystem.beginTransaction();
+        retiring = active;
+        active = next;
+        JCSystem.commitTransaction();
+    }
+
+    public void updateAfterReset() {
+        for (short i = 0; i < (short) keysets.length; ++i) {
+            keysets[i].updateAfterReset();
+        }
+    }
+
+    public Keyset getActive() {
+        return keysets[active];
+    }
+
+    public Keyset getRetiring() {
+        if (retiring == NONE)
+            ISOException.throwIt(Consts.E_INVALID_KEYSET);
+        return keysets[retiring];
     }
 }
@@ -10,16 +10,15 @@ public class HashToCurve {
     private final MessageDigest md = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
     private final byte[] prefixBuffer = JCSystem.makeTransientByteArray((short) 36, JCSystem.CLEAR_ON_RESET);
     private final byte[] ramArray = JCSystem.makeTransientByteArray((short) 32, JCSystem.CLEAR_ON_RESET);
+    // Domain separator followed by a message of up to 64 bytes, hashed in a single call
+    private final byte[] messageBuffer = JCSystem.makeTransientByteArray((short) (Consts.H2C_DOMAIN_SEPARATOR.length + 64), JCSystem.CLEAR_ON_RESET);
 
     public void hash(byte[] data, short offset, ECPoint output) {
         hashLong(data, offset, (short) 32, output);
     }
 
     public void hashLong(byte[] data, short offset, short length, ECPoint output) {
-        Util.arrayFillNonAtomic(prefixBuffer, (short) 32, (short) 4, (byte) 0);
-        md.reset();
-        md.update(Consts.H2C_DOMAIN_SEPARATOR, (short) 0, (short) Consts.H2C_DOMAIN_SEPARATOR.length);
-        md.doFinal(data, offset, length, prefixBuffer, (short) 0);
+        hashMessage(data, offset, length);
 
         for (short counter = 0; counter < (short) 256; ++counter) {
             md.reset();
@@ -32,13 +31,22 @@ public class HashToCurve {
             output.negate();
     }
 
+    /**
+     * Loads a host-computed hash-to-curve result after checking it against the input.
+     * The result is an uncompressed point followed by the one byte try-and-increment counter it was found at.
+     * The counter is not checked to be the first one that hits the curve, since that would take a square root
+     * per smaller counter, nearly what hash costs. A later counter gives another point for the same message, but
+     * the ledger is keyed by the message, so that point can neither spend it twice nor add value.
+     */
     public void hashPrecomputed(byte[] input, short inputOffset, byte[] result, short resultOffset, ECPoint output) {
-        Util.arrayFillNonAtomic(prefixBuffer, (short) 32, (short) 4, (byte) 0);
-        md.reset();
-        md.update(Consts.H2C_DOMAIN_SEPARATOR, (short) 0, (short) Consts.H2C_DOMAIN_SEPARATOR.length);
-        md.doFinal(input, inputOffset, (short) 32, prefixBuffer, (short) 0);
+        hashLongPrecomputed(input, inputOffset, (short) 32, result, resultOffset, output);
+    }
+
+    public void hashLongPrecomputed(byte[] input, short inputOffset, short inputLength, byte[] result, short resultOffset, ECPoint output) {
+        hashMessage(input, inputOffset, inputLength);
 
         md.reset();
+        prefixBuffer[32] = result[(short) (resultOffset + 65)];
         md.doFinal(prefixBuffer, (short) 0, (short) prefixBuffer.length, ramArray, (short) 0);
 
         if (Util.arrayCompare(ramArray, (short) 0, result, (short) (resultOffset + 1), (short) 32) != 0) {
@@ -46,8 +54,28 @@ public class HashToCurve {
         }
 
         output.setW(result, resultOffset, (short) 65);
+        if (!output.isOnCurve())
+            ISOException.throwIt(Consts.E_INVALID_PRECOMPUTE);
 
         if (!output.isYEven())
             output.negate();
     }
+
+    /**
+     * Computes H(domain separator || message) into prefixBuffer and clears the counter after it.
+     * Messages up to 64 bytes are appended to the separator in RAM and hashed by a single doFinal.
+     */
+    private void hashMessage(byte[] data, short offset, short length) {
+        Util.arrayFillNonAtomic(prefixBuffer, (short) 32, (short) 4, (byte) 0);
+        md.reset();
+        short separatorLength = (short) Consts.H2C_DOMAIN_SEPARATOR.length;
+        if (length <= (short) (messageBuffer.length - separatorLength)) {
+            Util.arrayCopyNonAtomic(Consts.H2C_DOMAIN_SEPARATOR, (short) 0, messageBuffer, (short) 0, separatorLength);
+            Util.arrayCopyNonAtomic(data, offset, messageBuffer, separatorLength, length);
+            md.doFinal(messageBuffer, (short) 0, (short) (separatorLength + length), prefixBuffer, (short) 0);
+        } else {
+            md.update(Consts.H2C_DOMAIN_SEPARATOR, (short) 0, separatorLength);
+            md.doFinal(data, offset, length, prefixBuffer, (short) 0);
+        }
+    }
 }
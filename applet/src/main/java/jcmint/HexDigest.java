@@ -0,0 +1,53 @@
+package jcmint;
+
+import javacard.framework.JCSystem;
+import javacard.security.MessageDigest;
+
+/**
+ * Hashes the lowercase hex encoding of its input, as NUT-12 DLEQ transcripts require.
+ * The hex characters are expanded into a RAM buffer of one SHA-256 block, so the digest
+ * is updated once per 64 characters instead of once per character.
+ */
+public class HexDigest {
+    private static final short BLOCK_SIZE = 64;
+
+    private final MessageDigest md;
+    private final byte[] buffer = JCSystem.makeTransientByteArray(BLOCK_SIZE, JCSystem.CLEAR_ON_RESET);
+    private final short[] buffered = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+
+    public HexDigest(MessageDigest md) {
+        this.md = md;
+    }
+
+    public void reset() {
+        md.reset();
+        buffered[0] = 0;
+    }
+
+    /**
+     * Adds the hex encoding of the bytes to the hash.
+     */
+    public void update(byte[] bytes, short offset, short length) {
+        short used = buffered[0];
+        for (short i = 0; i < length; i++) {
+            if (used == BLOCK_SIZE) {
+                md.update(buffer, (short) 0, BLOCK_SIZE);
+                used = 0;
+            }
+            byte b = bytes[(short) (offset + i)];
+            buffer[used++] = HexUtil.HEX_CHARS[(b >> 4) & 0x0F];
+            buffer[used++] = HexUtil.HEX_CHARS[b & 0x0F];
+        }
+        buffered[0] = used;
+    }
+
+    /**
+     * Completes the hash of everything added since the last reset.
+     * @return length of the hash
+     */
+    public short doFinal(byte[] output, short outputOffset) {
+        short used = buffered[0];
+        buffered[0] = 0;
+        return md.doFinal(buffer, (short) 0, used, output, outputOffset);
+    }
+}
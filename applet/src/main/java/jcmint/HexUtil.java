@@ -3,7 +3,7 @@ package jcmint;
 import javacard.security.MessageDigest;
 
 public class HexUtil {
-    private static final byte[] HEX_CHARS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+    static final byte[] HEX_CHARS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
 
     public static void mdHexString(MessageDigest md, byte[] bytes, short offset, short length) {
         for (short i = 0; i < length; i++) {
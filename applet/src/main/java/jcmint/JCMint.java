@@ -19,25 +19,60 @@ public class JCMint extends Applet implements ExtendedLength {
     private ECCurve curve;              // Elliptic curve operations (secp256k1)
     private final RandomData randomData = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
     private final MessageDigest md = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+    private final HexDigest hexDigest = new HexDigest(md);  // Hex-encoded transcripts of NUT-12 DLEQ proofs
 
     // Multi-party setup state
     private byte index;                 // This card's index in the multi-party setup
     private byte parties;               // Total number of participating parties
+    private byte threshold;             // Parties needed to sign with Shamir-shared secrets, 0 if every party signs
+    private final byte maxParties;      // Largest federation the partial key tables were sized for at install
 
-    // Different coin denominations
-    // NOTE: are multiple denominations actually supported?
-    private Denomination[] denominations = new Denomination[1];
+    // Keysets of all power-of-two denominations, the secret of each amount is derived from one master secret
+    private Denomination denomination;
 
     // Temporary computation variables (reused to save memory)
     private ECPoint point1, point2;     // Temporary elliptic curve points
-    private BigNat bn1, bn2;           // Temporary big number storage
+    private ECPoint[] msmPoints;       // Terms of a multi-scalar multiplication
+    private BigNat[] msmScalars;
+    private FixedBaseTable generatorTable;  // Comb table of G in EEPROM, null if the profile has none
+    private ECPoint[] batchPoints;     // Terms of the batch proof check, null if the profile adds points in hardware
+    private BigNat[] batchScalars;
+    private BigNat bn1, bn2, bn3, bn4; // Temporary big number storage
     private final byte[] ramArray = JCSystem.makeTransientByteArray((short) 65, JCSystem.CLEAR_ON_RESET);
-    private final byte[] largeBuffer = JCSystem.makeTransientByteArray((short) 814, JCSystem.CLEAR_ON_RESET);
+    private final static short BATCH_PARTIES = Consts.PROOFS_PER_COMMAND;  // Proofs checked by one multi-scalar multiplication
+    private final static short BATCH_PROOFS_SWAP = (short) (7 + 32 + 65 + 65 + Consts.PROOFS_PER_COMMAND * (65 + 65 + 65 + 32)); // Largest extended swap APDU with batch proofs
+    private final static short BATCH_SWAP = (short) (7 + Consts.MAX_BATCH * (2 + 64 + 65) + Consts.MAX_BATCH * (1 + 65)); // Largest batch swap APDU with amounts and 64-character secrets
+    private final static short BATCH_DLEQ_SWAP = (short) (Consts.MAX_BATCH * (32 + 65 + 32 + 32 + 1 + 65)); // Spent keys, outputs with proofs and challenges of a batch swap
+    private final static short LARGE_SWAP = BATCH_SWAP > BATCH_DLEQ_SWAP ? BATCH_SWAP : BATCH_DLEQ_SWAP;
+    private final static short LARGE_BUFFER = BATCH_PROOFS_SWAP > LARGE_SWAP ? BATCH_PROOFS_SWAP : LARGE_SWAP;
+    private final byte[] largeBuffer = JCSystem.makeTransientByteArray(LARGE_BUFFER, JCSystem.CLEAR_ON_RESET);
+    private final short[] pendingResponse = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET); // Chained response in largeBuffer: (offset, remaining)
+    private final static short BALANCE = 9;  // Bytes of a sum of up to MAX_BATCH amounts of at most 2^63
+    private final byte[] balance = JCSystem.makeTransientByteArray((short) (2 * BALANCE), JCSystem.CLEAR_ON_RESET); // Input and output sums of a batch swap
+    private final boolean[] compressed = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_DESELECT); // Points on the wire are compressed in this session
+
+    // Chained redeem batch: only an item split between two commands is kept
+    private final static short STREAM_ITEM = (short) (1 + Consts.ITEM_LENGTH_MASK + 65 + 65 + 1);  // Largest redeem item
+    private final byte[] streamItem = JCSystem.makeTransientByteArray(STREAM_ITEM, JCSystem.CLEAR_ON_DESELECT);
+    private final short[] stream = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT); // (P2 + 1 while a chain is open, length of the split item)
+    private final byte[] streamStatus = JCSystem.makeTransientByteArray( // Status bits of the items completed by one command
+            (short) (((STREAM_ITEM + LARGE_BUFFER) / (1 + 32 + 33) + 7) / 8), JCSystem.CLEAR_ON_RESET);
     private HashToCurve h2c;           // Hash-to-curve implementation
 
-    // Double-spending prevention and verification state
-    private final Ledger ledger = new Ledger();  // Tracks spent tokens
-    private final byte[] verifying = new byte[(short) (32 + 65 + 65 + 65)]; // Verification context: (message, token, H(message), signature)
+    private final NoncePool noncePool = new NoncePool(Consts.NONCE_POOL_SIZE);  // Precomputed DLEQ nonces
+    private KeyPair noncePair;         // Generates DLEQ nonces with commitments in hardware, null if unsupported; the nonce is transient
+
+    // Verification state (spent tokens are tracked per keyset)
+    private final static short VERIFYING_SUM = (short) (32 + 65 + 65 + 65);
+    private final static short VERIFYING_RECEIVED = (short) (VERIFYING_SUM + 65);
+    private final static short VERIFYING_SIGNERS = (short) (VERIFYING_RECEIVED + 2);
+    private final static short VERIFYING_KEYSET = (short) (VERIFYING_SIGNERS + 2);
+    private final static short VERIFYING_NONCE = (short) (VERIFYING_KEYSET + 1);
+    // Verification context: (message, token, H(message), signature, sum of the verifying points received so far,
+    // bitmaps of their parties and of the signers, keyset, session nonce), in RAM unless installed with
+    // INSTALL_PERSISTENT_VERIFYING
+    private final byte[] verifying;
+    private final byte[] sessionNonce = JCSystem.makeTransientByteArray((short) 8, JCSystem.CLEAR_ON_DESELECT);
     private boolean initialized = false;
     public static void install(byte[] bArray, short bOffset, byte bLength) {
         new JCMint(bArray, bOffset, bLength);
@@ -45,9 +80,57 @@ public class JCMint extends Applet implements ExtendedLength {
 
     public JCMint(byte[] buffer, short offset, byte length) {
         OperationSupport.getInstance().setCard(CARD_TYPE);
+        short data = appletData(buffer, offset, length);
+        maxParties = installParties(buffer, data);
+        verifying = (installFlags(buffer, data) & Consts.INSTALL_PERSISTENT_VERIFYING) == 0
+                ? JCSystem.makeTransientByteArray((short) (VERIFYING_NONCE + 8), JCSystem.CLEAR_ON_DESELECT)
+                : new byte[(short) (VERIFYING_NONCE + 8)];
+        // Build the crypto objects at install, unless the card cannot allocate them there
+        if (!OperationSupport.getInstance().DEFERRED_INITIALIZATION)
+            initialize();
         register();
     }
 
+    /**
+     * Finds the applet data [La][max_parties][flags] in the install parameters [Li][AID][Lc][control_info][La][...].
+     *
+     * @return offset of La, or -1 without applet data
+     */
+    private static short appletData(byte[] buffer, short offset, byte length) {
+        short end = (short) (offset + (length & 0xff));
+        if (offset >= end)
+            return -1;
+        offset += (short) (1 + (buffer[offset] & 0xff));  // Skip the AID
+        if (offset >= end)
+            return -1;
+        offset += (short) (1 + (buffer[offset] & 0xff));  // Skip the control info
+        if (offset >= end || buffer[offset] == 0)
+            return -1;
+        return offset;
+    }
+
+    /**
+     * Reads the largest federation to size the partial key tables for, it defaults to MAX_PARTIES.
+     */
+    private static byte installParties(byte[] buffer, short data) {
+        if (data < 0)
+            return Consts.MAX_PARTIES;
+
+        byte maxParties = buffer[(short) (data + 1)];
+        if (maxParties < 1 || maxParties > Consts.MAX_PARTIES)
+            ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
+        return maxParties;
+    }
+
+    /**
+     * Reads the INSTALL_* flags, none are set by default.
+     */
+    private static byte installFlags(byte[] buffer, short data) {
+        if (data < 0 || (buffer[data] & 0xff) < 2)
+            return 0;
+        return buffer[(short) (data + 2)];
+    }
+
     /**
      * Main APDU processing method. Routes incoming commands to appropriate handlers.
      * Implements comprehensive error handling for debugging and security.
@@ -57,14 +140,23 @@ public class JCMint extends Applet implements ExtendedLength {
         if (selectingApplet())
             return;
 
-        // Verify command class byte
-        if (apdu.getBuffer()[ISO7816.OFFSET_CLA] != Consts.CLA_JCMINT)
+        // Verify command class byte, only redeem batches may be chained
+        if ((byte) (apdu.getBuffer()[ISO7816.OFFSET_CLA] & ~Consts.CLA_CHAINING) != Consts.CLA_JCMINT)
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+        if (apdu.isCommandChainingCLA() && apdu.getBuffer()[ISO7816.OFFSET_INS] != Consts.INS_REDEEM_BATCH)
+            ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
 
-        // Initialize on first use
+        // Initialize on first use if deferred from install
         if (!initialized)
             initialize();
 
+        // Any command other than GET RESPONSE discards a pending chained response
+        if (apdu.getBuffer()[ISO7816.OFFSET_INS] != Consts.INS_GET_RESPONSE)
+            pendingResponse[1] = 0;
+        // Any other command closes an open redeem chain
+        if (apdu.getBuffer()[ISO7816.OFFSET_INS] != Consts.INS_REDEEM_BATCH)
+            stream[0] = 0;
+
         try {
             // Route command based on instruction byte
             switch (apdu.getBuffer()[ISO7816.OFFSET_INS]) {
@@ -77,6 +169,12 @@ public class JCMint extends Applet implements ExtendedLength {
                 case Consts.INS_ISSUE_SINGLE_DLEQ:
                     issueSingleDLEQ(apdu);           // Issue signature with DLEQ
                     break;
+                case Consts.INS_ISSUE_BATCH:
+                    issueBatch(apdu);      // Issue multiple signatures at once
+                    break;
+                case Consts.INS_GET_RESPONSE:
+                    getResponse(apdu);     // Continue a chained response
+                    break;
                 case Consts.INS_HASH_TO_CURVE:
                     hashToCurve(apdu);     // Hash data to curve point
                     break;
@@ -89,12 +187,36 @@ public class JCMint extends Applet implements ExtendedLength {
                 case Consts.INS_SWAP_SINGLE:
                     swapSingle(apdu);      // Swap token (single-party)
                     break;
+                case Consts.INS_SWAP_BATCH:
+                    swapBatch(apdu);       // Swap many tokens for many (single-party)
+                    break;
                 case Consts.INS_REDEEM:
                     redeem(apdu);          // Redeem token (multi-party)
                     break;
+                case Consts.INS_PROOFS:
+                    proofs(apdu);          // Submit a chunk of proofs (multi-party)
+                    break;
                 case Consts.INS_REDEEM_SINGLE:
                     redeemSingle(apdu);    // Redeem token (single-party)
                     break;
+                case Consts.INS_REDEEM_BATCH:
+                    redeemBatch(apdu);     // Redeem many tokens (single-party)
+                    break;
+                case Consts.INS_ROTATE:
+                    rotate(apdu);          // Rotate to a fresh keyset
+                    break;
+                case Consts.INS_PRECOMPUTE:
+                    precompute(apdu);      // Fill the nonce pool
+                    break;
+                case Consts.INS_WARMUP:
+                    warmup(apdu);          // Exercise every crypto engine once
+                    break;
+                case Consts.INS_KEYS:
+                    keys(apdu);            // Return the mint key of an amount
+                    break;
+                case Consts.INS_POINT_FORMAT:
+                    pointFormat(apdu);     // Select the wire format of points
+                    break;
                 case Consts.INS_NOP:
                     nop(apdu);             // No-operation (testing)
                     break;
@@ -129,8 +251,13 @@ public class JCMint extends Applet implements ExtendedLength {
     }
 
     public boolean select() {
-        if (initialized)
+        // Refill the RAM copies of the keysets, so that commands do not read them from EEPROM
+        if (initialized) {
             curve.updateAfterReset();
+            denomination.updateAfterReset();
+        }
+        // A verification context is only valid within the session that created it
+        randomData.nextBytes(sessionNonce, (short) 0, (short) sessionNonce.length);
         return true;
     }
 
@@ -156,11 +283,35 @@ public class JCMint extends Applet implements ExtendedLength {
         point2 = new ECPoint(curve);
         bn1 = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
         bn2 = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        bn3 = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        bn4 = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        msmPoints = new ECPoint[4];
+        msmScalars = new BigNat[4];
+        for (short i = 0; i < (short) msmPoints.length; ++i) {
+            msmPoints[i] = new ECPoint(curve);
+            msmScalars[i] = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        }
+        if (!OperationSupport.getInstance().EC_HW_ADD) {
+            batchPoints = new ECPoint[(short) (4 * BATCH_PARTIES + 1)];
+            batchScalars = new BigNat[(short) batchPoints.length];
+            for (short i = 0; i < (short) batchPoints.length; ++i) {
+                batchPoints[i] = new ECPoint(curve);
+                batchScalars[i] = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+            }
+        }
+        if (OperationSupport.getInstance().EC_GEN_PAIR) {
+            // Only the public commitment is persistent, the nonce stays in RAM and is gone after a deselect
+            ECPublicKey noncePublic = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, curve.KEY_BIT_LENGTH, false);
+            ECPrivateKey noncePrivate = (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT, curve.KEY_BIT_LENGTH, false);
+            curve.setParameters(noncePublic);
+            curve.setParameters(noncePrivate);
+            noncePair = new KeyPair(noncePublic, noncePrivate);
+        }
+        if (OperationSupport.getInstance().EC_FIXED_BASE_TEETH > 0)
+            generatorTable = new FixedBaseTable(curve, curve.G, OperationSupport.getInstance().EC_FIXED_BASE_TEETH, point1);
 
         // Initialize denomination structures
-        for (short i = 0; i < (short) denominations.length; ++i) {
-            denominations[i] = new Denomination(rm);
-        }
+        denomination = new Denomination(curve, rm, maxParties, new KeyDerivation(md, curve.rBN));
 
         initialized = true;
     }
@@ -169,36 +320,217 @@ public class JCMint extends Applet implements ExtendedLength {
      * Sets up the multi-party minting system.
      * Receives this card's secret and all parties' public keys.
      * Computes and returns the combined mint public key.
+     * With a threshold t, the secret is this card's Shamir share f(index + 1) of the mint secret f(0),
+     * and any t parties can sign and verify.
      */
     private void setup(APDU apdu) {
         byte[] buffer = loadApdu(apdu);
         index = buffer[ISO7816.OFFSET_P1];    // This card's index
         parties = buffer[ISO7816.OFFSET_P2];  // Total number of parties
         
-        // Validate party count
-        if (parties < 1 || parties > Consts.MAX_PARTIES) {
+        // Validate party count against the partial key tables sized at install
+        if (parties < 1 || parties > maxParties) {
             ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
         }
+
+        // Optional threshold after the public keys, every party signs without it
+        short keysEnd = (short) (apdu.getOffsetCdata() + 32 + 65 * parties);
+        threshold = apdu.getIncomingLength() > (short) (keysEnd - apdu.getOffsetCdata()) ? buffer[keysEnd] : 0;
+        if (threshold < 0 || threshold > parties) {
+            ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
+        }
+        checkShares(buffer, (short) (apdu.getOffsetCdata() + 32));
         
-        // Initialize all denominations with the setup data
-        // Data format: [secret_key][public_key_0][public_key_1]...[public_key_n]
-        for (short i = 0; i < (short) denominations.length; ++i) {
-            denominations[i].setup(parties, buffer, apdu.getOffsetCdata(), buffer, (short) (apdu.getOffsetCdata() + 32));
+        // Initialize all denominations with the setup data, the secret is the master of every amount
+        // Data format: [secret_key][public_key_0][public_key_1]...[public_key_n][optional_threshold]
+        denomination.setup(parties, buffer, apdu.getOffsetCdata(), buffer, (short) (apdu.getOffsetCdata() + 32));
+        updateMintKey(denomination.getActive());
+
+        // Return the combined mint public key of amount 0
+        Util.arrayCopyNonAtomic(denomination.getActive().mintKey, (short) 0, apdu.getBuffer(), (short) 0, (short) 65);
+        apdu.setOutgoingAndSend((short) 0, (short) 65);
+    }
+
+    /**
+     * Rotates all denominations to a fresh keyset without a full re-setup.
+     * The current keyset becomes retiring and the previous retiring keyset is dropped.
+     * Data format: [secret_key][public_key_0][public_key_1]...[public_key_n]
+     */
+    private void rotate(APDU apdu) {
+        byte[] buffer = loadApdu(apdu);
+
+        // Rotation keeps the party layout established by setup
+        if (parties < 1)
+            ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
+        checkShares(buffer, (short) (apdu.getOffsetCdata() + 32));
+
+        denomination.rotate(parties, buffer, apdu.getOffsetCdata(), buffer, (short) (apdu.getOffsetCdata() + 32));
+        updateMintKey(denomination.getActive());
+
+        // Return the combined mint public key of the new keyset
+        Util.arrayCopyNonAtomic(denomination.getActive().mintKey, (short) 0, apdu.getBuffer(), (short) 0, (short) 65);
+        apdu.setOutgoingAndSend((short) 0, (short) 65);
+    }
+
+    /**
+     * Computes the combined mint public key = sum of all party public keys of a keyset and stores it in the keyset.
+     * With a threshold the public keys are interpolated at 0 from the first threshold parties instead.
+     */
+    private void updateMintKey(Keyset keyset) {
+        short count = threshold != 0 ? threshold : parties;
+        combineKeys(keyset.partialKeys(), (short) 0, (short) ((short) (1 << count) - 1), point2);
+        point2.getW(ramArray, (short) 0);
+        keyset.setMintKey(ramArray, (short) 0);
+    }
+
+    /**
+     * Checks that the public keys of a threshold mint are shares of one polynomial of degree threshold - 1.
+     * Any threshold of its shares interpolate to the same key, so the first threshold - 1 parties together with
+     * each later party must give the key of the first threshold parties. Without a threshold there is nothing to check.
+     */
+    private void checkShares(byte[] keys, short keysOffset) {
+        if (threshold == 0)
+            return;
+
+        short first = (short) ((short) (1 << (threshold - 1)) - 1);
+        ECPoint mintKey = msmPoints[0];
+        combineKeys(keys, keysOffset, (short) (first | (short) (1 << (threshold - 1))), mintKey);
+        for (short j = threshold; j < parties; ++j) {
+            combineKeys(keys, keysOffset, (short) (first | (short) (1 << j)), point2);
+            if (!point2.isEqual(mintKey))
+                ISOException.throwIt(Consts.E_INVALID_SHARES);
         }
+    }
 
-        // Compute combined mint public key = sum of all party public keys
-        ECPoint mintKey = point2;
-        mintKey.decode(denominations[0].partialKeys, (short) 0, (short) 65);
-        for (short i = 1; i < parties; ++i) {
-            point1.decode(denominations[0].partialKeys, (short) (65 * i), (short) 65);
-            mintKey.add(point1);
+    /**
+     * Combines the public keys of the signers into the point: their sum, or with a threshold their interpolation
+     * at 0. Uses point1 and bn1 to bn4.
+     */
+    private void combineKeys(byte[] keys, short keysOffset, short signers, ECPoint result) {
+        boolean empty = true;
+        for (short i = 0; i < parties; ++i) {
+            if ((signers & (short) (1 << i)) == 0) {
+                continue;
+            }
+            ECPoint term = empty ? result : point1;
+            term.decode(keys, (short) (keysOffset + 65 * i), (short) 65);
+            if (threshold != 0) {
+                lagrange(i, signers, bn1);
+                term.multiplication(bn1);
+            }
+            if (!empty) {
+                result.add(point1);
+            }
+            empty = false;
         }
-        
-        // Reset the spent token ledger
-        ledger.reset();
+    }
+
+    /**
+     * Computes the Lagrange coefficient at 0 of a party for a set of signers, with party i at x = i + 1:
+     * the product over the other signers j of x_j / (x_j - x_i). Uses bn2 to bn4.
+     */
+    private void lagrange(short party, short signers, BigNat result) {
+        BigNat denominator = bn2;
+        BigNat tmp = bn3;
+        BigNat x = bn4;
+
+        result.setValue((short) 1);
+        denominator.setValue((short) 1);
+        x.setValue((short) (party + 1));
+        for (short j = 0; j < parties; ++j) {
+            if (j == party || (signers & (short) (1 << j)) == 0) {
+                continue;
+            }
+            tmp.setValue((short) (j + 1));
+            result.modMult(tmp, curve.rBN);
+            tmp.modSub(x, curve.rBN);
+            denominator.modMult(tmp, curve.rBN);
+        }
+        denominator.modInv(curve.rBN);
+        result.modMult(denominator, curve.rBN);
+    }
+
+    /**
+     * Returns the size of a point on the wire in this session.
+     */
+    private short pointSize() {
+        return compressed[0] ? (short) 33 : (short) 65;
+    }
+
+    /**
+     * Writes the point to the output in the session's wire format, using ramArray.
+     *
+     * @return length of the encoded point
+     */
+    private short encodePoint(ECPoint point, byte[] output, short offset) {
+        short length = point.encode(ramArray, (short) 0, compressed[0]);
+        Util.arrayCopyNonAtomic(ramArray, (short) 0, output, offset, length);
+        return length;
+    }
+
+    /**
+     * Records the 32-byte message as spent in the ledger of the keyset. The slot and the entry count are committed
+     * in one transaction, so a tear never leaves a counted entry without its slot or the reverse.
+     */
+    private void spend(Keyset keyset, byte[] buffer, short offset) {
+        JCSystem.beginTransaction();
+        keyset.ledger.append(buffer, offset);
+        JCSystem.commitTransaction();
+    }
+
+    /**
+     * Compares the point with a token encoded in length bytes, using ramArray.
+     * Compressed tokens are compared by their compressed encoding, so they never need a square root.
+     */
+    private boolean isToken(ECPoint point, byte[] token, short offset, short length) {
+        point.encode(ramArray, (short) 0, length != (short) 65);
+        return Util.arrayCompare(ramArray, (short) 0, token, offset, length) == 0;
+    }
+
+    /**
+     * Selects the keyset addressed by P2: the low bits pick the amount 2^i,
+     * the high bit picks its retiring keyset instead of the active one.
+     */
+    private Keyset keyset(byte p2) {
+        Keyset keyset = (p2 & Consts.P2_RETIRING) != 0 ? denomination.getRetiring() : denomination.getActive();
+        selectAmount(keyset, (byte) (p2 & Consts.P2_DENOMINATION_MASK));
+        return keyset;
+    }
+
+    /**
+     * Selects the amount addressed by P2 in the active keyset, which is the only one that issues.
+     */
+    private Keyset active(byte p2) {
+        if ((p2 & Consts.P2_RETIRING) != 0)
+            ISOException.throwIt(Consts.E_INVALID_KEYSET);
+        return keyset(p2);
+    }
+
+    /**
+     * Derives the secret of the amount 2^i in the keyset. Amounts other than 0 exist only in single-party mode,
+     * since the card cannot derive the other parties' partial keys to verify their proofs. Multi-party and threshold
+     * mints get E_SINGLE_PARTY_AMOUNT for them, so that a client can tell the restriction from a bad keyset.
+     */
+    private void selectAmount(Keyset keyset, byte amount) {
+        if (amount < 0 || amount >= Consts.MAX_AMOUNTS)
+            ISOException.throwIt(Consts.E_INVALID_KEYSET);
+        if (amount != 0 && parties != 1)
+            ISOException.throwIt(Consts.E_SINGLE_PARTY_AMOUNT);
+        keyset.select(amount);
+    }
+
+    /**
+     * Returns the mint public key of the amount and keyset addressed by P2, uncompressed like the keys of setup.
+     * Wallets fetch the keys of every amount once per keyset, so the card computes them on demand instead of storing them.
+     */
+    private void keys(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        Keyset keyset = keyset(apduBuffer[ISO7816.OFFSET_P2]);
 
-        // Return the combined mint public key
-        apdu.setOutgoingAndSend((short) 0, mintKey.getW(apdu.getBuffer(), (short) 0));
+        // Amount 0 holds the combined key of all parties, the other amounts only the card's own key
+        byte[] key = keyset.getAmount() == 0 ? keyset.mintKey : keyset.publicKey(point1);
+        Util.arrayCopyNonAtomic(key, (short) 0, apduBuffer, (short) 0, (short) 65);
+        apdu.setOutgoingAndSend((short) 0, (short) 65);
     }
 
     /**
@@ -208,16 +540,16 @@ public class JCMint extends Applet implements ExtendedLength {
      */
     private void issue(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
-        byte d = apduBuffer[ISO7816.OFFSET_P2];  // Denomination index
+        Keyset active = active(apduBuffer[ISO7816.OFFSET_P2]);  // Only the active keyset issues
 
         // Decode the challenge point from client
-        point1.decode(apduBuffer, ISO7816.OFFSET_CDATA, (short) 65);
+        point1.decode(apduBuffer, ISO7816.OFFSET_CDATA, pointSize());
         
         // Compute partial signature: challenge * secret_key
-        point1.multiplication(denominations[d].secret);
+        active.multiply(point1);
 
         // Return the partial signature
-        apdu.setOutgoingAndSend((short) 0, point1.getW(apduBuffer, (short) 0));
+        apdu.setOutgoingAndSend((short) 0, encodePoint(point1, apduBuffer, (short) 0));
     }
 
     /**
@@ -226,52 +558,224 @@ public class JCMint extends Applet implements ExtendedLength {
      */
     private void issueSingleDLEQ(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
-        byte d = apduBuffer[ISO7816.OFFSET_P2];  // Denomination index
-        BigNat nonce = bn1;                      // Random nonce for proof
-        BigNat tmp = bn2;                        // Temporary computation
+        Keyset active = active(apduBuffer[ISO7816.OFFSET_P2]);  // Only the active keyset issues
 
         // Ensure single-party mode
         if (parties != 1)
             ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
 
-        // Generate random nonce for proof
-        randomData.nextBytes(ramArray, (short) 0, (short) 32);
-        nonce.fromByteArray(ramArray, (short) 0, (short) 32);
+        // Return proof: [C_][e][s] (point + 32 + 32 bytes)
+        apdu.setOutgoingAndSend((short) 0, signDLEQ(active, apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) 0));
+    }
 
-        // DLEQ proof step 1: Compute R1 = r*G
-        point1.decode(curve.G, (short) 0, (short) curve.G.length);
-        point1.multiplication(nonce);
-        point1.encode(ramArray, (short) 0, false);
-        md.reset();
-        HexUtil.mdHexString(md, ramArray, (short) 0, (short) 65);
+    /**
+     * Issues blind signatures on up to MAX_BATCH challenge points in a single command.
+     * P1 = 1 adds a NUT-12 DLEQ proof to every signature (single-party mode only).
+     * Data format: [challenge_0][challenge_1]...[challenge_n]
+     * Response: [C_0][C_1]...[C_n], or [C_0][e_0][s_0]...[C_n][e_n][s_n] with proofs
+     */
+    private void issueBatch(APDU apdu) {
+        byte[] buffer = loadApdu(apdu);
+        boolean dleq = buffer[ISO7816.OFFSET_P1] == (byte) 1;
+        Keyset active = active(buffer[ISO7816.OFFSET_P2]);  // Only the active keyset issues
+        short length = apdu.getIncomingLength();
+        short pointSize = pointSize();
+        short count = (short) (length / pointSize);
+        short width = dleq ? (short) (pointSize + 32 + 32) : pointSize;
+
+        if (count == 0 || count > Consts.MAX_BATCH || (short) (count * pointSize) != length)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        if (dleq && parties != 1)
+            ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
+
+        // Move challenges to the end of largeBuffer, so that responses written from the start
+        // never overwrite a challenge that has not been processed yet
+        short inputs = (short) (largeBuffer.length - length);
+        Util.arrayCopyNonAtomic(buffer, apdu.getOffsetCdata(), largeBuffer, inputs, length);
+
+        for (short i = 0; i < count; ++i) {
+            if (dleq) {
+                signDLEQ(active, largeBuffer, (short) (inputs + i * pointSize), largeBuffer, (short) (i * width));
+            } else {
+                point1.decode(largeBuffer, (short) (inputs + i * pointSize), pointSize);
+                active.multiply(point1);
+                encodePoint(point1, largeBuffer, (short) (i * width));
+            }
+        }
+
+        sendLarge(apdu, (short) 0, (short) (count * width));
+    }
+
+    /**
+     * Signs a challenge point and proves it with a NUT-12 DLEQ proof.
+     * Writes [C_][e][s] to output, both points in the session's wire format; the challenge is fully read before any output is written.
+     *
+     * @return length of the output
+     */
+    private short signDLEQ(Keyset keyset, byte[] challenge, short challengeOffset, byte[] output, short outputOffset) {
+        BigNat nonce = bn1;                      // Random nonce for proof
+        BigNat tmp = bn2;                        // Temporary computation
+
+        // DLEQ proof step 1: Draw nonce r and R1 = r*G
+        nonceCommitment(nonce);
+        hexDigest.reset();
+        hexDigest.update(ramArray, (short) 0, (short) 65);
 
         // Decode the challenge point from client
-        point1.decode(apduBuffer, ISO7816.OFFSET_CDATA, (short) 65);
-        point2.decode(apduBuffer, ISO7816.OFFSET_CDATA, (short) 65);
+        point1.decode(challenge, challengeOffset, pointSize());
+        point2.copy(point1);
 
         // DLEQ proof step 2: Compute R2 = r*B'
         point1.multiplication(nonce);
         point1.encode(ramArray, (short) 0, false);
-        HexUtil.mdHexString(md, ramArray, (short) 0, (short) 65);
+        hexDigest.update(ramArray, (short) 0, (short) 65);
 
-        // DLEQ proof step 3: Add A
-        HexUtil.mdHexString(md, denominations[d].partialKeys, (short) (index * 65), (short) 65);
+        // DLEQ proof step 3: Add A, the derived amounts have only the card's own key
+        if (keyset.getAmount() == 0) {
+            hexDigest.update(keyset.partialKeys(), (short) (index * 65), (short) 65);
+        } else {
+            hexDigest.update(keyset.publicKey(point1), (short) 0, (short) 65);
+        }
 
         // DLEQ proof step 4: Add C'
-        point2.multiplication(denominations[d].secret);
-        point2.encode(apduBuffer, (short) 0, false); // C'
+        keyset.multiply(point2);
+        point2.getW(ramArray, (short) 0);
+        hexDigest.update(ramArray, (short) 0, (short) 65);
+        short length = encodePoint(point2, output, outputOffset);  // C'
         // Compute challenge e
-        HexUtil.mdHexString(md, apduBuffer, (short) 0, (short) 65);
-        md.doFinal(apduBuffer, (short) 0, (short) 0, apduBuffer, (short) 65);
+        hexDigest.doFinal(output, (short) (outputOffset + length));
 
         // DLEQ proof step 7: Compute response s = e * secret + nonce
-        tmp.fromByteArray(apduBuffer, (short) 65, (short) 32);  // Load challenge e
-        tmp.modMult(denominations[d].secret, curve.rBN);        // e * secret
-        tmp.modAdd(nonce, curve.rBN);                           // + nonce
-        tmp.copyToByteArray(apduBuffer, (short) (65 + 32));     // Store s
+        tmp.fromByteArray(output, (short) (outputOffset + length), (short) 32);  // Load challenge e
+        tmp.modMult(keyset.secret, curve.rBN);                                   // e * secret
+        tmp.modAdd(nonce, curve.rBN);                                            // + nonce
+        tmp.copyToByteArray(output, (short) (outputOffset + length + 32));       // Store s
+        return (short) (length + 32 + 32);
+    }
+
+    /**
+     * Draws a fresh DLEQ nonce and stores its commitment nonce*G into ramArray.
+     * Takes a precomputed pair from the pool if available, otherwise generates a new one.
+     */
+    private void nonceCommitment(BigNat nonce) {
+        if (!noncePool.take(nonce, ramArray, (short) 0))
+            generateNonce(nonce);
+    }
+
+    /**
+     * Generates a random nonce and stores its commitment nonce*G into ramArray.
+     * Cards with EC_GEN_PAIR get both from a single key pair generation, others multiply G using point2.
+     */
+    private void generateNonce(BigNat nonce) {
+        if (noncePair != null) {
+            // A deselect may have cleared the curve of the transient nonce along with its value
+            if (!noncePair.getPrivate().isInitialized())
+                curve.setParameters((ECPrivateKey) noncePair.getPrivate());
+            noncePair.genKeyPair();
+            short length = ((ECPrivateKey) noncePair.getPrivate()).getS(ramArray, (short) 0);
+            nonce.fromByteArray(ramArray, (short) 0, length);
+            ((ECPublicKey) noncePair.getPublic()).getW(ramArray, (short) 0);
+            return;
+        }
+
+        // The nonce is secret, so it is multiplied by key agreement: the comb table is variable-time
+        randomData.nextBytes(ramArray, (short) 0, (short) 32);
+        nonce.fromByteArray(ramArray, (short) 0, (short) 32);
+        point2.decode(curve.G, (short) 0, (short) curve.G.length);
+        point2.multiplication(nonce);
+        point2.getW(ramArray, (short) 0);
+    }
+
+    /**
+     * Multiplies G by the scalar into the point, using the comb table if the profile has one.
+     * The table is variable-time, so the scalar must be public, as s in proof checks.
+     */
+    private void multiplyGenerator(BigNat scalar, ECPoint point) {
+        if (generatorTable != null) {
+            generatorTable.multiply(scalar, point);
+        } else {
+            point.decode(curve.G, (short) 0, (short) curve.G.length);
+            point.multiplication(scalar);
+        }
+    }
+
+    /**
+     * Computes msmScalars[0]*G + msmScalars[1]*msmPoints[1] into the result, which must not be msmPoints[1].
+     * With the comb table only the second term takes a generic multiplication.
+     */
+    private void multiScalarGenerator(ECPoint result) {
+        if (generatorTable != null) {
+            generatorTable.multiply(msmScalars[0], result);
+            msmPoints[1].multiplication(msmScalars[1]);
+            result.add(msmPoints[1]);
+        } else {
+            msmPoints[0].decode(curve.G, (short) 0, (short) curve.G.length);
+            result.multiScalar(msmScalars, msmPoints, (short) 2);
+        }
+    }
+
+    /**
+     * Fills the DLEQ nonce pool while the card is otherwise idle.
+     * P1 = maximum number of pairs to compute by this command.
+     * Response: [pool_size] (1 byte)
+     */
+    private void precompute(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        short count = (short) (apduBuffer[ISO7816.OFFSET_P1] & 0xff);
+        BigNat nonce = bn1;
+
+        for (short i = 0; i < count && !noncePool.isFull(); ++i) {
+            generateNonce(nonce);
+            noncePool.add(nonce, ramArray, (short) 0);
+        }
+
+        apduBuffer[0] = (byte) noncePool.size();
+        apdu.setOutgoingAndSend((short) 0, (short) 1);
+    }
 
-        // Return proof: [C_][e][s] (65 + 32 + 32 bytes)
-        apdu.setOutgoingAndSend((short) 0, (short) (65 + 32 + 32));
+    /**
+     * Runs every cryptographic engine once, so that their one-time setup is not paid by the first real command.
+     * Touches only temporaries: ledgers, nonce pool and verification context are left as they are.
+     */
+    private void warmup(APDU apdu) {
+        BigNat nonce = bn1;
+        BigNat tmp = bn2;
+
+        // Hash-to-curve: SHA-256 and the modular square root
+        h2c.hash(curve.G, (short) 1, point1);
+
+        // Nonce generation: random data with key pair generation or a multiplication of G
+        generateNonce(nonce);
+
+        // Point multiplication, addition and comparison
+        point1.multiplication(nonce);
+        point2.decode(ramArray, (short) 0, (short) 65);
+        point1.add(point2);
+        point1.isEqual(point2);
+
+        // Scalar arithmetic and the transcript digest
+        tmp.clone(nonce);
+        tmp.modMult(nonce, curve.rBN);
+        tmp.modAdd(nonce, curve.rBN);
+        md.reset();
+        md.doFinal(ramArray, (short) 0, (short) 65, ramArray, (short) 0);
+
+        // Key agreement preloaded with the secret of the active keyset
+        if (parties > 0) {
+            denomination.getActive().multiply(point1);
+        }
+    }
+
+    /**
+     * Selects the wire format of points for the rest of the session.
+     * P1 = P1_COMPRESSED for 33-byte compressed SEC1 points, 0 for 65-byte uncompressed ones.
+     * Setup, rotate and precomputed hashes always carry uncompressed points.
+     */
+    private void pointFormat(APDU apdu) {
+        byte p1 = apdu.getBuffer()[ISO7816.OFFSET_P1];
+        if (p1 != 0 && p1 != Consts.P1_COMPRESSED)
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        compressed[0] = p1 == Consts.P1_COMPRESSED;
     }
 
     /**
@@ -286,7 +790,7 @@ public class JCMint extends Applet implements ExtendedLength {
         h2c.hashLong(apduBuffer, ISO7816.OFFSET_CDATA, length, point1);
         
         // Return the resulting point
-        apdu.setOutgoingAndSend((short) 0, point1.getW(apduBuffer, (short) 0));
+        apdu.setOutgoingAndSend((short) 0, encodePoint(point1, apduBuffer, (short) 0));
     }
 
 
@@ -298,24 +802,27 @@ public class JCMint extends Applet implements ExtendedLength {
     private void verify(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
         byte precomputed = apduBuffer[ISO7816.OFFSET_P1];  // Whether hash is precomputed
+        short pointSize = pointSize();
         BigNat nonce = bn1;                               // Random nonce for proof
         BigNat tmp = bn2;                                 // Temporary computation
-        byte d = apduBuffer[ISO7816.OFFSET_P2];           // Denomination index
+        byte p2 = apduBuffer[ISO7816.OFFSET_P2];           // Denomination and keyset, the header is overwritten by Y
+        Keyset keyset = keyset(p2);                       // Keyset the token was issued under
 
         // Prevent double-spending: check if message already used
-        if (ledger.contains(apduBuffer, ISO7816.OFFSET_CDATA))
+        if (keyset.ledger.contains(apduBuffer, ISO7816.OFFSET_CDATA))
             ISOException.throwIt(Consts.E_ALREADY_SPENT);
 
         // Record message as spent
-        ledger.append(apduBuffer, ISO7816.OFFSET_CDATA);
+        spend(keyset, apduBuffer, ISO7816.OFFSET_CDATA);
         
-        // Store verification context: [message][token]
-        Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, verifying, (short) 0, (short) (32 + 65));
+        // Store verification context: [message][token], invalid until the session nonce is set
+        Util.arrayFillNonAtomic(verifying, VERIFYING_NONCE, (short) sessionNonce.length, (byte) 0);
+        Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, verifying, (short) 0, (short) (32 + pointSize));
 
         // DLEQ proof step 1: Compute X = H(message)
         if (precomputed == (byte) 1) {
             // Use precomputed hash-to-curve result
-            h2c.hashPrecomputed(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32 + 65), point1);
+            h2c.hashPrecomputed(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32 + pointSize), point1);
         } else {
             // Compute hash-to-curve on the fly
             h2c.hash(apduBuffer, ISO7816.OFFSET_CDATA, point1);
@@ -327,154 +834,490 @@ public class JCMint extends Applet implements ExtendedLength {
         md.update(verifying, (short) (32 + 65), (short) 65);  // Add X to hash
 
         // DLEQ proof step 2: Compute Y = X * secret (the verifying point)
-        point1.multiplication(denominations[d].secret);
-        point1.getW(apduBuffer, (short) 0);                    // Store Y in output
+        keyset.multiply(point1);
+        short length = encodePoint(point1, apduBuffer, (short) 0);  // Store Y in output
         point1.getW(verifying, (short) (32 + 65 + 65));       // Store Y in context
+        point1.getW(verifying, VERIFYING_SUM);                // Other parties' Y are added as their proofs arrive
+        Util.setShort(verifying, VERIFYING_RECEIVED, (short) (1 << index));
+        Util.setShort(verifying, VERIFYING_SIGNERS, threshold != 0 ? 0 : (short) ((short) (1 << parties) - 1));  // Set by readSigners with a threshold
+        verifying[VERIFYING_KEYSET] = p2;
+        Util.arrayCopyNonAtomic(sessionNonce, (short) 0, verifying, VERIFYING_NONCE, (short) sessionNonce.length); // Context complete
         point1.decode(verifying, (short) (32 + 65), (short) 65); // Restore X
-        md.update(apduBuffer, (short) 0, (short) 65);         // Add Y to hash
+        md.update(verifying, (short) (32 + 65 + 65), (short) 65);  // Add Y to hash
 
         // DLEQ proof step 3: Add generator P to hash
-        point2.decode(curve.G, (short) 0, (short) curve.G.length);
         md.update(curve.G, (short) 0, (short) 65);
 
-        // DLEQ proof step 4: Add public key Q to hash
-        md.update(denominations[d].partialKeys, (short) (index * 65), (short) 65);
+        // DLEQ proof step 4: Add public key Q to hash, the derived amounts have only the card's own key
+        if (keyset.getAmount() == 0) {
+            md.update(keyset.partialKeys(), (short) (index * 65), (short) 65);
+        } else {
+            md.update(keyset.publicKey(point2), (short) 0, (short) 65);
+        }
 
-        // Generate random nonce for proof
-        randomData.nextBytes(ramArray, (short) 0, (short) 32);
-        nonce.fromByteArray(ramArray, (short) 0, (short) 32);
+        // Draw nonce and B = P * nonce, keep B after the proof until the challenge is computed
+        nonceCommitment(nonce);
+        Util.arrayCopyNonAtomic(ramArray, (short) 0, apduBuffer, (short) (65 + 32 + 32), (short) 65);
 
         // DLEQ proof step 5: Compute A = X * nonce
         point1.multiplication(nonce);
         point1.getW(ramArray, (short) 0);
         md.update(ramArray, (short) 0, (short) 65);  // Add A to hash
 
-        // DLEQ proof step 6: Compute B = P * nonce  
-        point2.multiplication(nonce);
-        point2.getW(ramArray, (short) 0);
-        md.doFinal(ramArray, (short) 0, (short) 65, apduBuffer, (short) 65);  // Compute challenge e
+        // DLEQ proof step 6: Add B
+        md.doFinal(apduBuffer, (short) (65 + 32 + 32), (short) 65, apduBuffer, length);  // Compute challenge e
 
         // DLEQ proof step 7: Compute response s = e * secret + nonce
-        tmp.fromByteArray(apduBuffer, (short) 65, (short) 32);  // Load challenge e
-        tmp.modMult(denominations[d].secret, curve.rBN);        // e * secret
-        tmp.modAdd(nonce, curve.rBN);                           // + nonce
-        tmp.copyToByteArray(apduBuffer, (short) (65 + 32));     // Store s
+        tmp.fromByteArray(apduBuffer, length, (short) 32);         // Load challenge e
+        tmp.modMult(keyset.secret, curve.rBN);                     // e * secret
+        tmp.modAdd(nonce, curve.rBN);                              // + nonce
+        tmp.copyToByteArray(apduBuffer, (short) (length + 32));    // Store s
 
-        // Return proof: [Y][e][s] (65 + 32 + 32 bytes)
-        apdu.setOutgoingAndSend((short) 0, (short) (65 + 32 + 32));
+        // Return proof: [Y][e][s] (point + 32 + 32 bytes)
+        apdu.setOutgoingAndSend((short) 0, (short) (length + 32 + 32));
     }
 
     /**
-     * Completes verification by checking all parties' zero-knowledge proofs.
-     * Verifies DLEQ proofs from other parties and validates the complete token.
-     * Used in multi-party swap and redeem operations.
+     * Completes verification for swap and redeem: checks the proofs of all signers if they follow at proofs,
+     * otherwise takes the proofs submitted in chunks by INS_PROOFS, then validates the complete token.
+     * Proofs are [Y][e][s] per signer, or [Y][A][B][s] when checked as a batch.
+     * With a threshold the proofs are preceded by the [signers] bitmap, see readSigners.
      */
-    private void finishVerify(byte d, byte[] token, short tokenOffset, byte[] proofs, short proofsOffset) {
-        BigNat e = bn1;  // Challenge from proof
-        BigNat s = bn2;  // Response from proof
+    private void finishVerify(byte p2, byte[] buffer, short message, short proofs, short end, boolean batch) {
+        checkVerifying(p2);
 
         // Ensure we're verifying the same token as in verify()
-        if (Util.arrayCompare(token, tokenOffset, verifying, (short) 0, (short) 32) != 0) {
+        if (Util.arrayCompare(buffer, message, verifying, (short) 0, (short) 32) != 0)
             ISOException.throwIt(Consts.E_NOT_VERIFYING);
+
+        if (proofs != end) {
+            proofs = readSigners(buffer, proofs);
+        }
+        if (proofs != end) {
+            short count = signerCount(Util.getShort(verifying, VERIFYING_SIGNERS));
+            if ((short) (end - proofs) != (short) (count * proofLength(batch)))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            if (compressed[0]) {
+                addProofs(keyset(p2), largeBuffer, expandProofs(buffer, proofs, (short) 0, count, batch), (short) 0, count, batch);
+            } else {
+                addProofs(keyset(p2), buffer, proofs, (short) 0, count, batch);
+            }
         }
+        if (Util.getShort(verifying, VERIFYING_RECEIVED) != Util.getShort(verifying, VERIFYING_SIGNERS))
+            ISOException.throwIt(Consts.E_MISSING_PROOFS);
 
-        // Verify DLEQ proof from each other party
+        // Final verification: sum of verifying points should equal the provided token, in the format verify() got it
+        point1.decode(verifying, VERIFYING_SUM, (short) 65);
+        if (!isToken(point1, verifying, (short) 32, verifying[32] == (byte) 0x04 ? (short) 65 : (short) 33)) {
+            ISOException.throwIt(Consts.E_VERIFICATION_FAILED_TOKEN);
+        }
+
+        // Clear verification context for security
+        Util.arrayFillNonAtomic(verifying, (short) 0, (short) verifying.length, (byte) 0);
+    }
+
+    /**
+     * Ensures that a verification context from verify() exists in this session for the keyset addressed by P2.
+     */
+    private void checkVerifying(byte p2) {
+        if (Util.arrayCompare(sessionNonce, (short) 0, verifying, VERIFYING_NONCE, (short) sessionNonce.length) != 0
+                || verifying[VERIFYING_KEYSET] != p2) {
+            ISOException.throwIt(Consts.E_NOT_VERIFYING);
+        }
+    }
+
+    /**
+     * With a threshold, reads the [signers] bitmap (2 bytes) that precedes the proofs: at least threshold parties,
+     * including this card. The first bitmap fixes the signers of the token being verified and scales our verifying
+     * point by our Lagrange coefficient, later ones must name the same signers. Without a threshold every party signs.
+     *
+     * @return offset of the proofs
+     */
+    private short readSigners(byte[] buffer, short offset) {
+        if (threshold == 0)
+            return offset;
+
+        short signers = Util.getShort(buffer, offset);
+        short fixed = Util.getShort(verifying, VERIFYING_SIGNERS);
+        if (fixed == 0) {
+            if ((signers & (short) ~((short) (1 << parties) - 1)) != 0 || (signers & (short) (1 << index)) == 0
+                    || signerCount(signers) < threshold)
+                ISOException.throwIt(Consts.E_INVALID_SIGNERS);
+
+            point1.decode(verifying, (short) (32 + 65 + 65), (short) 65);
+            lagrange(index, signers, bn1);
+            point1.multiplication(bn1);
+            point1.getW(verifying, VERIFYING_SUM);
+            Util.setShort(verifying, VERIFYING_SIGNERS, signers);
+        } else if (signers != fixed) {
+            ISOException.throwIt(Consts.E_INVALID_SIGNERS);
+        }
+        return (short) (offset + 2);
+    }
+
+    /**
+     * Returns the number of parties in a bitmap.
+     */
+    private short signerCount(short signers) {
+        short count = 0;
         for (short i = 0; i < parties; ++i) {
+            if ((signers & (short) (1 << i)) != 0)
+                ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the party of a proof slot, counting the signers of the token being verified from party first on.
+     * Throws SW_WRONG_LENGTH if there are fewer signers.
+     */
+    private short signer(short first, short slot) {
+        short signers = Util.getShort(verifying, VERIFYING_SIGNERS);
+        for (short i = first; i < parties; ++i) {
+            if ((signers & (short) (1 << i)) != 0 && slot-- == 0)
+                return i;
+        }
+        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        return -1;
+    }
+
+    /**
+     * Returns the length of a proof of one party on the wire.
+     */
+    private short proofLength(boolean batch) {
+        return batch ? (short) (3 * pointSize() + 32) : (short) (pointSize() + 32 + 32);
+    }
+
+    /**
+     * Submits the proofs of a chunk of consecutive signers for the token being verified, so that federations
+     * whose proofs do not fit in one command can swap and redeem. Each proof is checked on arrival and its
+     * verifying point added to the running sum, so the work per party does not depend on the federation size.
+     * Swap and redeem then carry no proofs and only check the sum.
+     * P1 = P1_BATCH_PROOFS checks [Y][A][B][s] proofs as a batch, P2 = denomination and keyset of the token.
+     * Data format: [optional_signers][first_party][proofs of the signers from first_party on]...,
+     * the slot of this card is skipped; the signers bitmap is present with a threshold only
+     * Response: [received] (2 bytes) bitmap of the parties whose proofs are in the sum
+     */
+    private void proofs(APDU apdu) {
+        byte[] buffer = loadApdu(apdu);
+        boolean batch = buffer[ISO7816.OFFSET_P1] == Consts.P1_BATCH_PROOFS;
+        byte p2 = buffer[ISO7816.OFFSET_P2];
+        short end = (short) (apdu.getOffsetCdata() + apdu.getIncomingLength());
+
+        checkVerifying(p2);
+        short offset = readSigners(buffer, apdu.getOffsetCdata());
+        short first = buffer[offset];
+        short length = (short) (end - offset - 1);
+        short count = (short) (length / proofLength(batch));
+        if (count == 0 || (short) (count * proofLength(batch)) != length || first < 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        signer(first, (short) (count - 1));  // Enough signers for every proof
+
+        if (compressed[0]) {
+            addProofs(keyset(p2), largeBuffer, expandProofs(buffer, (short) (offset + 1), first, count, batch), first, count, batch);
+        } else {
+            addProofs(keyset(p2), buffer, (short) (offset + 1), first, count, batch);
+        }
+
+        byte[] apduBuffer = apdu.getBuffer();
+        Util.setShort(apduBuffer, (short) 0, Util.getShort(verifying, VERIFYING_RECEIVED));
+        apdu.setOutgoingAndSend((short) 0, (short) 2);
+    }
+
+    /**
+     * Checks the uncompressed proofs of count signers starting at first and adds their verifying points
+     * to the running sum of the verification context, scaled by their Lagrange coefficients with a threshold.
+     * A party whose proof is already in the sum is rejected.
+     */
+    private void addProofs(Keyset keyset, byte[] proofs, short proofsOffset, short first, short count, boolean batch) {
+        short received = Util.getShort(verifying, VERIFYING_RECEIVED);
+        short signers = Util.getShort(verifying, VERIFYING_SIGNERS);
+        for (short slot = 0; slot < count; ++slot) {
+            short i = signer(first, slot);
+            if (i != index && (received & (short) (1 << i)) != 0)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        short proofLength;
+        if (batch) {
+            proofLength = (short) (65 + 65 + 65 + 32);
+            // With hardware additions every term costs a multiplication, the batch only pays off in software
+            if (batchPoints == null || !verifyProofsBatch(keyset, proofs, proofsOffset, first, count))
+                verifyProofsSeparately(keyset, proofs, proofsOffset, first, count);
+        } else {
+            proofLength = (short) (65 + 32 + 32);
+            verifyProofs(keyset, proofs, proofsOffset, first, count);
+        }
+
+        // Add the other parties' verifying points to the sum
+        point1.decode(verifying, VERIFYING_SUM, (short) 65);
+        for (short slot = 0; slot < count; ++slot) {
+            short i = signer(first, slot);
+            if (i == index) {
+                continue;  // Our contribution already included
+            }
+            point2.decode(proofs, (short) (proofsOffset + slot * proofLength), (short) 65);
+            if (threshold != 0) {
+                lagrange(i, signers, bn1);
+                point2.multiplication(bn1);
+            }
+            point1.add(point2);
+            received |= (short) (1 << i);
+        }
+        point1.getW(verifying, VERIFYING_SUM);
+        Util.setShort(verifying, VERIFYING_RECEIVED, received);
+    }
+
+    /**
+     * Checks the [Y][e][s] DLEQ proof of each other party among count signers starting at first by recomputing its challenge.
+     */
+    private void verifyProofs(Keyset keyset, byte[] proofs, short proofsOffset, short first, short count) {
+        BigNat s = msmScalars[0];       // Response from proof
+        BigNat negE = msmScalars[1];    // Negated challenge from proof
+
+        // Verify DLEQ proof from each other party
+        for (short slot = 0; slot < count; ++slot) {
+            short i = signer(first, slot);
             if (i == index) {
                 continue;  // Skip our own proof (already generated)
             }
-            
+            short offset = (short) (proofsOffset + slot * (65 + 32 + 32));
+
             md.reset();
             
             // Extract proof components for party i
-            e.fromByteArray(proofs, (short) (proofsOffset + i * (65 + 32 + 32) + 65), (short) 32);      // challenge
-            s.fromByteArray(proofs, (short) (proofsOffset + i * (65 + 32 + 32) + 65 + 32), (short) 32); // response
+            negE.fromByteArray(proofs, (short) (offset + 65), (short) 32);  // challenge
+            negE.modNegate(curve.rBN);
+            s.fromByteArray(proofs, (short) (offset + 65 + 32), (short) 32); // response
 
             // Rebuild hash for challenge verification
             md.update(verifying, (short) (32 + 65), (short) 65);                     // X (hashed message)
-            md.update(proofs, (short) (proofsOffset + i * (65 + 32 + 32)), (short) 65); // Y (verifying point)
+            md.update(proofs, offset, (short) 65); // Y (verifying point)
             md.update(curve.G, (short) 0, (short) curve.G.length);                   // P (generator)
-            md.update(denominations[d].partialKeys, (short) (65 * i), (short) 65);  // Q (public key)
+            md.update(keyset.partialKeys(), (short) (65 * i), (short) 65);  // Q (public key)
 
             // Verify proof: recompute A = s*X - e*Y
-            point2.decode(proofs, (short) (proofsOffset + i * (65 + 32 + 32)), (short) 65);  // Load Y
-            point2.multiplication(e);   // e * Y
-            point2.negate();           // -e * Y
-
-            point1.decode(verifying, (short) (32 + 65), (short) 65);  // Load X
-            point1.multAndAdd(s, point2);  // s*X + (-e*Y) = s*X - e*Y
+            msmPoints[0].decode(verifying, (short) (32 + 65), (short) 65);                   // Load X
+            msmPoints[1].decode(proofs, offset, (short) 65);  // Load Y
+            point1.multiScalar(msmScalars, msmPoints, (short) 2);
             point1.getW(ramArray, (short) 0);
             md.update(ramArray, (short) 0, (short) 65);  // Add A to hash
 
             // Verify proof: recompute B = s*P - e*Q
-            point2.decode(denominations[d].partialKeys, (short) (65 * i), (short) 65);  // Load Q
-            point2.multiplication(e);   // e * Q
-            point2.negate();           // -e * Q
-
-            point1.decode(curve.G, (short) 0, (short) curve.G.length);  // Load P
-            point1.multAndAdd(s, point2);  // s*P + (-e*Q) = s*P - e*Q
+            msmPoints[1].decode(keyset.partialKeys(), (short) (65 * i), (short) 65);  // Load Q
+            multiScalarGenerator(point1);
             point1.getW(ramArray, (short) 0);
             md.doFinal(ramArray, (short) 0, (short) 65, ramArray, (short) 0);  // Compute final hash
 
             // Check if recomputed challenge matches original
-            if (Util.arrayCompare(proofs, (short) (proofsOffset + i * (65 + 32 + 32) + 65), ramArray, (short) 0, (short) 32) != 0) {
+            if (Util.arrayCompare(proofs, (short) (offset + 65), ramArray, (short) 0, (short) 32) != 0) {
                 ISOException.throwIt(Consts.E_VERIFICATION_FAILED_PROOF);
             }
         }
+    }
+
+    /**
+     * Checks the [Y][A][B][s] DLEQ proofs of the other parties among count signers starting at first at once.
+     * With e_i = H(X, Y_i, P, Q_i, A_i, B_i) and random weights z_i, w_i it tests
+     * sum (z_i*A_i + z_i*e_i*Y_i + w_i*B_i + w_i*e_i*Q_i) - (sum z_i*s_i)*X == (sum w_i*s_i)*P
+     * with one multi-scalar multiplication per BATCH_PARTIES proofs, so that all their terms share one doubling chain.
+     *
+     * @return false if the combination does not hold, i.e. some proof is invalid
+     */
+    private boolean verifyProofsBatch(Keyset keyset, byte[] proofs, short proofsOffset, short first, short count) {
+        BigNat sumZ = bn3;    // sum z_i*s_i
+        BigNat sumW = bn4;    // sum w_i*s_i
+        BigNat s = msmScalars[0];
+        BigNat tmp = msmScalars[1];
+        short terms = 0;
+
+        for (short slot = 0; slot < count; ++slot) {
+            short i = signer(first, slot);
+            if (i != index) {
+                if (terms == 0) {
+                    sumZ.zero();
+                    sumW.zero();
+                }
+                short offset = (short) (proofsOffset + slot * (65 + 65 + 65 + 32));
+                batchChallenge(keyset, i, proofs, offset);  // e_i into ramArray[0..32]
+                s.fromByteArray(proofs, (short) (offset + 65 + 65 + 65), (short) 32);
+
+                // X side: z_i for A_i, z_i*e_i for Y_i and z_i*s_i into the left-hand side
+                randomWeight(batchScalars[terms]);
+                batchScalars[(short) (terms + 1)].fromByteArray(ramArray, (short) 0, (short) 32);
+                batchScalars[(short) (terms + 1)].modMult(batchScalars[terms], curve.rBN);
+                tmp.clone(s);
+                tmp.modMult(batchScalars[terms], curve.rBN);
+                sumZ.modAdd(tmp, curve.rBN);
+
+                // P side: w_i for B_i, w_i*e_i for Q_i and w_i*s_i into the left-hand side
+                randomWeight(batchScalars[(short) (terms + 2)]);
+                batchScalars[(short) (terms + 3)].fromByteArray(ramArray, (short) 0, (short) 32);
+                batchScalars[(short) (terms + 3)].modMult(batchScalars[(short) (terms + 2)], curve.rBN);
+                s.modMult(batchScalars[(short) (terms + 2)], curve.rBN);
+                sumW.modAdd(s, curve.rBN);
+
+                batchPoints[terms].decode(proofs, (short) (offset + 65), (short) 65);                 // A_i
+                batchPoints[(short) (terms + 1)].decode(proofs, offset, (short) 65);                  // Y_i
+                batchPoints[(short) (terms + 2)].decode(proofs, (short) (offset + 65 + 65), (short) 65);  // B_i
+                batchPoints[(short) (terms + 3)].decode(keyset.partialKeys(), (short) (65 * i), (short) 65);  // Q_i
+                terms += 4;
+            }
+            if (terms != 0 && (terms == (short) (batchPoints.length - 1) || slot == (short) (count - 1))) {
+                if (!checkBatch(terms))
+                    return false;
+                terms = 0;
+            }
+        }
+        return true;
+    }
 
-        // Verify the complete token by summing all verifying points
-        point1.decode(verifying, (short) (32 + 65 + 65), (short) 65);  // Start with our verifying point
-        for (short i = 0; i < parties; ++i) {
+    /**
+     * Appends the term -(sum z_i*s_i)*X to the terms of verifyProofsBatch and checks that they add up to (sum w_i*s_i)*P.
+     * The generator is kept out of the sum, so that it can use the comb table and the sum never passes through infinity.
+     */
+    private boolean checkBatch(short terms) {
+        batchScalars[terms].clone(bn3);
+        batchScalars[terms].modNegate(curve.rBN);
+        batchPoints[terms].decode(verifying, (short) (32 + 65), (short) 65);  // X
+
+        point1.multiScalar(batchScalars, batchPoints, (short) (terms + 1));
+        multiplyGenerator(bn4, point2);
+        return point1.isEqual(point2);
+    }
+
+    /**
+     * Checks the [Y][A][B][s] DLEQ proofs one by one, where a batch does not pay off or to find the party whose proof is invalid.
+     * Throws E_VERIFICATION_FAILED_PARTY with the index of the first such party.
+     */
+    private void verifyProofsSeparately(Keyset keyset, byte[] proofs, short proofsOffset, short first, short count) {
+        BigNat s = msmScalars[0];     // Response from proof
+        BigNat negE = msmScalars[1];  // Negated recomputed challenge
+
+        for (short slot = 0; slot < count; ++slot) {
+            short i = signer(first, slot);
             if (i == index) {
-                continue;  // Our contribution already included
+                continue;
             }
-            // Add other parties' verifying points
-            point2.decode(proofs, (short) (proofsOffset + i * (65 + 32 + 32)), (short) 65);
-            point1.add(point2);
+            short offset = (short) (proofsOffset + slot * (65 + 65 + 65 + 32));
+            batchChallenge(keyset, i, proofs, offset);
+            negE.fromByteArray(ramArray, (short) 0, (short) 32);
+            negE.modNegate(curve.rBN);
+            s.fromByteArray(proofs, (short) (offset + 65 + 65 + 65), (short) 32);
+
+            // s*X - e*Y == A
+            msmPoints[0].decode(verifying, (short) (32 + 65), (short) 65);
+            msmPoints[1].decode(proofs, offset, (short) 65);
+            point1.multiScalar(msmScalars, msmPoints, (short) 2);
+            point2.decode(proofs, (short) (offset + 65), (short) 65);
+            if (!point1.isEqual(point2))
+                ISOException.throwIt((short) (Consts.E_VERIFICATION_FAILED_PARTY | i));
+
+            // s*P - e*Q == B
+            msmPoints[1].decode(keyset.partialKeys(), (short) (65 * i), (short) 65);
+            multiScalarGenerator(point1);
+            point2.decode(proofs, (short) (offset + 65 + 65), (short) 65);
+            if (!point1.isEqual(point2))
+                ISOException.throwIt((short) (Consts.E_VERIFICATION_FAILED_PARTY | i));
         }
+    }
 
-        // Final verification: sum of verifying points should equal the provided token
-        point1.getW(ramArray, (short) 0);
-        if (Util.arrayCompare(ramArray, (short) 0, verifying, (short) 32, (short) 65) != 0) {
-            ISOException.throwIt(Consts.E_VERIFICATION_FAILED_TOKEN);
+    /**
+     * Computes the challenge e = H(X, Y, P, Q, A, B) of a [Y][A][B][s] proof into ramArray[0..32].
+     */
+    private void batchChallenge(Keyset keyset, short party, byte[] proofs, short offset) {
+        md.reset();
+        md.update(verifying, (short) (32 + 65), (short) 65);               // X (hashed message)
+        md.update(proofs, offset, (short) 65);                             // Y (verifying point)
+        md.update(curve.G, (short) 0, (short) curve.G.length);             // P (generator)
+        md.update(keyset.partialKeys(), (short) (65 * party), (short) 65);   // Q (public key)
+        md.doFinal(proofs, (short) (offset + 65), (short) (65 + 65), ramArray, (short) 0);  // A and B
+    }
+
+    /**
+     * Expands compressed [Y][e][s] or [Y][A][B][s] proofs of count signers starting at first into the uncompressed
+     * layout at the end of largeBuffer, so that each point is decompressed only once.
+     * Parties are expanded from the last one, so that no proof is overwritten before it is read.
+     * The slot of this card is skipped.
+     *
+     * @return offset of the expanded proofs in largeBuffer
+     */
+    private short expandProofs(byte[] buffer, short offset, short first, short count, boolean batch) {
+        short points = batch ? (short) 3 : (short) 1;
+        short scalars = batch ? (short) 32 : (short) (32 + 32);
+        short compressedLength = (short) (points * 33 + scalars);
+        short expandedLength = (short) (points * 65 + scalars);
+        // The expanded proofs must start behind the compressed ones, or the backward expansion could overwrite them
+        if (count > (short) ((short) (largeBuffer.length - offset) / expandedLength))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        short expanded = (short) (largeBuffer.length - count * expandedLength);
+
+        for (short i = (short) (count - 1); i >= 0; --i) {
+            if (signer(first, i) == index) {
+                continue;
+            }
+            short from = (short) (offset + i * compressedLength);
+            short to = (short) (expanded + i * expandedLength);
+            for (short j = 0; j < points; ++j) {
+                msmPoints[j].decode(buffer, (short) (from + j * 33), (short) 33);
+            }
+            Util.arrayCopyNonAtomic(buffer, (short) (from + points * 33), largeBuffer, (short) (to + points * 65), scalars);
+            for (short j = 0; j < points; ++j) {
+                msmPoints[j].getW(largeBuffer, (short) (to + j * 65));
+            }
         }
+        return expanded;
+    }
 
-        // Clear verification context for security
-        Util.arrayFillNonAtomic(verifying, (short) 0, (short) verifying.length, (byte) 0);
+    /**
+     * Loads a random 128-bit batch verification weight, using ramArray[32..64].
+     */
+    private void randomWeight(BigNat weight) {
+        Util.arrayFillNonAtomic(ramArray, (short) 32, (short) 16, (byte) 0);
+        randomData.nextBytes(ramArray, (short) 48, (short) 16);
+        weight.fromByteArray(ramArray, (short) 32, (short) 32);
     }
 
     /**
      * Swaps an old token for a new one in multi-party mode.
      * First verifies the old token and all proofs, then issues new token.
-     * Data format: [message][old_token][new_challenge][proofs...]
+     * Data format: [message][old_token][new_challenge][proofs...], without proofs if they were submitted by INS_PROOFS
+     * P1 = P1_BATCH_PROOFS checks [Y][A][B][s] proofs as a batch.
      */
     private void swap(APDU apdu) {
         byte[] buffer = loadApdu(apdu);
-        byte d = buffer[ISO7816.OFFSET_P2];  // Denomination index
+        byte p2 = buffer[ISO7816.OFFSET_P2];  // Denomination index and keyset of the old token
+        boolean batch = buffer[ISO7816.OFFSET_P1] == Consts.P1_BATCH_PROOFS;
+        short pointSize = pointSize();
 
         // Verify old token and all parties' proofs
-        finishVerify(d, buffer, apdu.getOffsetCdata(), buffer, (short) (apdu.getOffsetCdata() + 32 + 65 + 65));
+        short proofs = (short) (apdu.getOffsetCdata() + 32 + pointSize + pointSize);
+        finishVerify(p2, buffer, apdu.getOffsetCdata(), proofs, (short) (apdu.getOffsetCdata() + apdu.getIncomingLength()), batch);
 
-        // Issue new token: new_challenge * secret
-        point1.decode(buffer, (short) (apdu.getOffsetCdata() + 32 + 65), (short) 65);  // Load new challenge
-        point1.multiplication(denominations[d].secret);
+        // Issue new token under the active keyset: new_challenge * secret
+        point1.decode(buffer, (short) (apdu.getOffsetCdata() + 32 + pointSize), pointSize);  // Load new challenge
+        active((byte) (p2 & Consts.P2_DENOMINATION_MASK)).multiply(point1);
         
         // Return new partial signature
-        apdu.setOutgoingAndSend((short) 0, point1.getW(apdu.getBuffer(), (short) 0));
+        apdu.setOutgoingAndSend((short) 0, encodePoint(point1, apdu.getBuffer(), (short) 0));
     }
 
     /**
      * Swaps a token in single-party mode (simpler, no external proofs needed).
      * Verifies old token locally and issues new token.
-     * Data format: [message][old_token][new_challenge][optional_precomputed_hash]
+     * P1 = 1 if a precomputed hash is included, with P1_DLEQ set the new token comes with a NUT-12 DLEQ proof.
+     * Data format: [message][old_token][new_challenge][optional_precomputed_hash][optional_counter]
+     * Response: [new_token], or [new_token][e][s] with a proof
      */
     private void swapSingle(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
-        byte precomputed = apduBuffer[ISO7816.OFFSET_P1];  // Precomputed hash flag
-        byte d = apduBuffer[ISO7816.OFFSET_P2];            // Denomination index
-        short messageLength = (short) (apduBuffer[ISO7816.OFFSET_LC] & 0xff - 130);
+        byte precomputed = (byte) (apduBuffer[ISO7816.OFFSET_P1] & ~Consts.P1_DLEQ);  // Precomputed hash flag
+        boolean dleq = (apduBuffer[ISO7816.OFFSET_P1] & Consts.P1_DLEQ) != 0;
+        byte p2 = apduBuffer[ISO7816.OFFSET_P2];           // Denomination index and keyset of the old token
+        short pointSize = pointSize();
+        short messageLength = (short) ((apduBuffer[ISO7816.OFFSET_LC] & 0xff) - pointSize - pointSize);
         if (precomputed == (byte) 1) {
-            messageLength = (short) (messageLength - 65);
+            messageLength = (short) (messageLength - 66);
         }
 
         // Ensure single-party mode
@@ -482,48 +1325,213 @@ public class JCMint extends Applet implements ExtendedLength {
             ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
 
         // Prevent double-spending
-        if (ledger.contains(apduBuffer, ISO7816.OFFSET_CDATA))
+        Keyset keyset = keyset(p2);
+        if (keyset.ledger.contains(apduBuffer, ISO7816.OFFSET_CDATA))
             ISOException.throwIt(Consts.E_ALREADY_SPENT);
 
         // Compute or load H(message)
         if (precomputed == (byte) 1 && messageLength == (short) 32) {
             // Use precomputed hash provided in command data
-            h2c.hashPrecomputed(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32 + 65 + 65), point1);
+            h2c.hashPrecomputed(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32 + pointSize + pointSize), point1);
         } else {
             // Compute hash on the fly
             h2c.hashLong(apduBuffer, ISO7816.OFFSET_CDATA, messageLength, point1);
         }
         
         // Verify old token: should be H(message) * secret
-        point1.multiplication(denominations[d].secret);
-        point1.getW(ramArray, (short) 0);
+        keyset.multiply(point1);
         
         // Compare computed token with provided token
-        if (Util.arrayCompare(apduBuffer, (short) (ISO7816.OFFSET_CDATA + messageLength), ramArray, (short) 0, (short) 65) != 0)
+        if (!isToken(point1, apduBuffer, (short) (ISO7816.OFFSET_CDATA + messageLength), pointSize))
             ISOException.throwIt(Consts.E_VERIFICATION_FAILED_TOKEN);
 
         // Mark message as spent
-        ledger.append(apduBuffer, ISO7816.OFFSET_CDATA);
+        spend(keyset, apduBuffer, ISO7816.OFFSET_CDATA);
         
-        // Issue new token: new_challenge * secret
-        point1.decode(apduBuffer, (short) (ISO7816.OFFSET_CDATA + messageLength + 65), (short) 65);
-        point1.multiplication(denominations[d].secret);
+        // Issue new token under the active keyset: new_challenge * secret
+        Keyset active = active((byte) (p2 & Consts.P2_DENOMINATION_MASK));
+        if (dleq) {
+            apdu.setOutgoingAndSend((short) 0, signDLEQ(active, apduBuffer, (short) (ISO7816.OFFSET_CDATA + messageLength + pointSize), apduBuffer, (short) 0));
+            return;
+        }
+        point1.decode(apduBuffer, (short) (ISO7816.OFFSET_CDATA + messageLength + pointSize), pointSize);
+        active.multiply(point1);
         
         // Return new token
-        apdu.setOutgoingAndSend((short) 0, point1.getW(apduBuffer, (short) 0));
+        apdu.setOutgoingAndSend((short) 0, encodePoint(point1, apduBuffer, (short) 0));
+    }
+
+    /**
+     * Swaps N tokens for M new ones atomically in single-party mode.
+     * Inputs are spent only if every input verifies and every output is signed.
+     * P1 = number of inputs N, with P1_DLEQ set every new token comes with a NUT-12 DLEQ proof.
+     * With P1_AMOUNTS set every input and output carries its own amount i of 2^i, and the outputs
+     * must not be worth more than the inputs. Otherwise P2 is the amount of all of them.
+     * P2 = denomination and keyset of the inputs.
+     * Data format: [message_length][message][token] * N, then [new_challenge] * M,
+     * or [amount][message_length][message][token] * N, then [amount][new_challenge] * M
+     * Response: [new_token] * M, or [new_token][e][s] * M with proofs
+     */
+    private void swapBatch(APDU apdu) {
+        byte[] buffer = loadApdu(apdu);
+        short inputCount = (short) (buffer[ISO7816.OFFSET_P1] & ~(Consts.P1_DLEQ | Consts.P1_AMOUNTS) & 0xff);
+        boolean dleq = (buffer[ISO7816.OFFSET_P1] & Consts.P1_DLEQ) != 0;
+        boolean amounts = (buffer[ISO7816.OFFSET_P1] & Consts.P1_AMOUNTS) != 0;
+        short header = amounts ? (short) 2 : (short) 1;  // Bytes before the message of an input
+        byte p2 = buffer[ISO7816.OFFSET_P2];
+        Keyset keyset = keyset(p2);
+        short pointSize = pointSize();
+        short offset = apdu.getOffsetCdata();
+        short end = (short) (offset + apdu.getIncomingLength());
+        Util.arrayFillNonAtomic(balance, (short) 0, (short) balance.length, (byte) 0);
+
+        // Ensure single-party mode
+        if (parties != 1)
+            ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
+        if (inputCount == 0 || inputCount > Consts.MAX_BATCH)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        if (keyset.ledger.free() < inputCount)
+            ISOException.throwIt(Consts.E_LEDGER_FULL);
+
+        // Verify all inputs before anything is written
+        for (short i = 0; i < inputCount; ++i) {
+            short message = (short) (offset + header);
+            if (message > end)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            short messageLength = (short) (buffer[(short) (message - 1)] & 0xff);
+            offset = (short) (message + messageLength + pointSize);
+            if (messageLength < 32 || offset > end)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            if (amounts) {
+                // All amounts share the keyset's ledger, their secrets are distinct
+                keyset = keyset(amount(p2, buffer[(short) (message - 2)], balance, (short) 0));
+            }
+
+            // Prevent double-spending, also within this batch
+            if (keyset.ledger.contains(buffer, message))
+                ISOException.throwIt(Consts.E_ALREADY_SPENT);
+            for (short j = (short) (apdu.getOffsetCdata() + header); j < message; j = nextInput(buffer, j, header)) {
+                if (Util.arrayCompare(buffer, j, buffer, message, (short) 32) == 0)
+                    ISOException.throwIt(Consts.E_ALREADY_SPENT);
+            }
+
+            // Verify token: should be H(message) * secret
+            h2c.hashLong(buffer, message, messageLength, point1);
+            keyset.multiply(point1);
+            if (!isToken(point1, buffer, (short) (message + messageLength), pointSize))
+                ISOException.throwIt(Consts.E_VERIFICATION_FAILED_TOKEN);
+        }
+
+        // Every output is worth one input of this denomination, or the outputs are worth at most the inputs
+        short outputs = offset;
+        short stride = (short) (pointSize + header - 1);
+        short outputCount = (short) ((short) (end - outputs) / stride);
+        if ((short) (outputCount * stride) != (short) (end - outputs) || outputCount > Consts.MAX_BATCH)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        if (amounts) {
+            for (offset = outputs; offset < end; offset += stride) {
+                amount((byte) 0, buffer[offset], balance, BALANCE);
+            }
+            if (lessThan(balance, (short) 0, BALANCE))
+                ISOException.throwIt(Consts.E_UNBALANCED);
+        } else if (outputCount > inputCount) {
+            ISOException.throwIt(Consts.E_UNBALANCED);
+        }
+
+        // Lay out largeBuffer as [spent keys][responses][challenges], so that a response never overwrites
+        // a key still to be spent or a challenge that has not been processed yet
+        short width = dleq ? (short) (pointSize + 32 + 32) : pointSize;
+        short challenges = (short) (largeBuffer.length - (short) (end - outputs));
+        Util.arrayCopyNonAtomic(buffer, outputs, largeBuffer, challenges, (short) (end - outputs));
+        short responses = 0;
+        for (offset = (short) (apdu.getOffsetCdata() + header); offset < outputs; ) {
+            // The inputs of an extended APDU are in largeBuffer too, skip this one before its key overwrites it
+            short next = nextInput(buffer, offset, header);
+            Util.arrayCopyNonAtomic(buffer, offset, largeBuffer, responses, (short) 32);
+            responses += 32;
+            offset = next;
+        }
+
+        // Sign all outputs under the active keyset
+        Keyset active = active((byte) (p2 & Consts.P2_DENOMINATION_MASK));
+        for (short i = 0; i < outputCount; ++i) {
+            short challenge = (short) (challenges + i * stride + header - 1);
+            if (amounts)
+                active = active(largeBuffer[(short) (challenge - 1)]);
+            if (dleq) {
+                signDLEQ(active, largeBuffer, challenge, largeBuffer, (short) (responses + i * width));
+            } else {
+                point1.decode(largeBuffer, challenge, pointSize);
+                active.multiply(point1);
+                encodePoint(point1, largeBuffer, (short) (responses + i * width));
+            }
+        }
+
+        // Mark all inputs as spent at once
+        JCSystem.beginTransaction();
+        for (offset = 0; offset < responses; offset += 32) {
+            keyset.ledger.append(largeBuffer, offset);
+        }
+        JCSystem.commitTransaction();
+
+        // Return new tokens
+        sendLarge(apdu, responses, (short) (outputCount * width));
+    }
+
+    /**
+     * Skips a [message_length][message][token] input, given the offset of its message
+     * and the number of bytes before it, which include the message length.
+     * @return offset of the next input's message
+     */
+    private short nextInput(byte[] buffer, short message, short header) {
+        return (short) (message + (buffer[(short) (message - 1)] & 0xff) + pointSize() + header);
+    }
+
+    /**
+     * Adds 2^amount to the big-endian sum of BALANCE bytes in the array at the offset.
+     * @return P2 addressing the amount in the keyset of the given P2
+     */
+    private byte amount(byte p2, byte amount, byte[] sum, short offset) {
+        if (amount < 0 || amount >= Consts.MAX_AMOUNTS)
+            ISOException.throwIt(Consts.E_INVALID_KEYSET);
+
+        short carry = (short) (1 << (amount & 7));
+        for (short i = (short) (offset + BALANCE - 1 - (amount >> 3)); carry != 0; --i) {
+            carry += (short) (sum[i] & 0xff);
+            sum[i] = (byte) carry;
+            carry >>= 8;
+        }
+        return (byte) ((p2 & Consts.P2_RETIRING) | amount);
+    }
+
+    /**
+     * Compares two big-endian sums of BALANCE bytes as unsigned numbers.
+     */
+    private static boolean lessThan(byte[] sum, short offset, short otherOffset) {
+        for (short i = 0; i < BALANCE; ++i) {
+            short a = (short) (sum[(short) (offset + i)] & 0xff);
+            short b = (short) (sum[(short) (otherOffset + i)] & 0xff);
+            if (a != b)
+                return a < b;
+        }
+        return false;
     }
 
     /**
      * Redeems a token in multi-party mode.
      * Verifies the token and all parties' proofs, then marks token as spent.
-     * Data format: [message][token][proofs...]
+     * Data format: [message][token][proofs...], without proofs if they were submitted by INS_PROOFS
+     * P1 = P1_BATCH_PROOFS checks [Y][A][B][s] proofs as a batch.
      */
     private void redeem(APDU apdu) {
         byte[] buffer = loadApdu(apdu);
-        byte d = buffer[ISO7816.OFFSET_P2];  // Denomination index
+        byte p2 = buffer[ISO7816.OFFSET_P2];  // Denomination index and keyset of the token
+
+        boolean batch = buffer[ISO7816.OFFSET_P1] == Consts.P1_BATCH_PROOFS;
 
         // Verify token and all parties' proofs
-        finishVerify(d, buffer, apdu.getOffsetCdata(), buffer, (short) (apdu.getOffsetCdata() + 32 + 65));
+        short proofs = (short) (apdu.getOffsetCdata() + 32 + pointSize());
+        finishVerify(p2, buffer, apdu.getOffsetCdata(), proofs, (short) (apdu.getOffsetCdata() + apdu.getIncomingLength()), batch);
 
         // Return success (no data)
         apdu.setOutgoing();
@@ -532,45 +1540,242 @@ public class JCMint extends Applet implements ExtendedLength {
     /**
      * Redeems a token in single-party mode.
      * Verifies token locally and marks it as spent.
-     * Data format: [message][token][optional_precomputed_hash]
+     * Data format: [message][token][optional_precomputed_hash][optional_counter]
      */
     private void redeemSingle(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
         byte precomputed = apduBuffer[ISO7816.OFFSET_P1];  // Precomputed hash flag
-        byte d = apduBuffer[ISO7816.OFFSET_P2];            // Denomination index
+        Keyset keyset = keyset(apduBuffer[ISO7816.OFFSET_P2]);  // Keyset the token was issued under
+        short pointSize = pointSize();
 
         // Ensure single-party mode
         if (parties != 1)
             ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
 
         // Prevent double-spending
-        if (ledger.contains(apduBuffer, ISO7816.OFFSET_CDATA))
+        if (keyset.ledger.contains(apduBuffer, ISO7816.OFFSET_CDATA))
             ISOException.throwIt(Consts.E_ALREADY_SPENT);
 
         // Compute or load H(message)
         if (precomputed == (byte) 1) {
             // Use precomputed hash provided in command data
-            h2c.hashPrecomputed(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32 + 65), point1);
+            h2c.hashPrecomputed(apduBuffer, ISO7816.OFFSET_CDATA, apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32 + pointSize), point1);
         } else {
             // Compute hash on the fly
             h2c.hash(apduBuffer, ISO7816.OFFSET_CDATA, point1);
         }
         
         // Verify token: should be H(message) * secret
-        point1.multiplication(denominations[d].secret);
-        point1.getW(ramArray, (short) 0);
+        keyset.multiply(point1);
         
         // Compare computed token with provided token
-        if (Util.arrayCompare(apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32), ramArray, (short) 0, (short) 65) != 0)
+        if (!isToken(point1, apduBuffer, (short) (ISO7816.OFFSET_CDATA + 32), pointSize))
             ISOException.throwIt(Consts.E_VERIFICATION_FAILED_TOKEN);
 
         // Mark message as spent
-        ledger.append(apduBuffer, ISO7816.OFFSET_CDATA);
+        spend(keyset, apduBuffer, ISO7816.OFFSET_CDATA);
         
         // Return success (no data)
         apdu.setOutgoing();
     }
 
+    /**
+     * Redeems up to MAX_BATCH tokens in single-party mode.
+     * Each item is checked on its own; all accepted items are marked as spent in a single transaction.
+     * P1 = number of items N, P2 = denomination and keyset of the tokens.
+     * Data format: [header][message][token][optional_precomputed_hash][optional_counter] * N,
+     * where header = message length, or'd with ITEM_PRECOMPUTED if the precomputed hash follows
+     * Response: status bitmap, bit i set if item i was redeemed
+     * Larger batches are streamed by chaining, see redeemStream.
+     */
+    private void redeemBatch(APDU apdu) {
+        if (apdu.isCommandChainingCLA() || stream[0] != 0) {
+            redeemStream(apdu);
+            return;
+        }
+
+        byte[] buffer = loadApdu(apdu);
+        short count = (short) (buffer[ISO7816.OFFSET_P1] & 0xff);
+        Keyset keyset = keyset(buffer[ISO7816.OFFSET_P2]);
+        short first = (short) (apdu.getOffsetCdata() + 1);
+        short end = (short) (apdu.getOffsetCdata() + apdu.getIncomingLength());
+        byte status = 0;
+
+        // Ensure single-party mode
+        if (parties != 1)
+            ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
+        if (count == 0 || count > Consts.MAX_BATCH)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        if (keyset.ledger.free() < count)
+            ISOException.throwIt(Consts.E_LEDGER_FULL);
+
+        short message = first;
+        for (short i = 0; i < count; ++i, message = nextItem(buffer, message)) {
+            short messageLength = (short) (buffer[(short) (message - 1)] & Consts.ITEM_LENGTH_MASK);
+            if (messageLength < 32 || nextItem(buffer, message) > (short) (end + 1))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            // Skip messages that are already spent, also within this batch
+            if (keyset.ledger.contains(buffer, message) || isAccepted(buffer, first, message, status))
+                continue;
+
+            if (checkItem(keyset, buffer, message))
+                status |= (byte) (1 << i);
+        }
+        if (message != (short) (end + 1))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        // Mark all accepted messages as spent at once
+        JCSystem.beginTransaction();
+        message = first;
+        for (short i = 0; i < count; ++i, message = nextItem(buffer, message)) {
+            if ((status & (1 << i)) != 0)
+                keyset.ledger.append(buffer, message);
+        }
+        JCSystem.commitTransaction();
+
+        byte[] apduBuffer = apdu.getBuffer();
+        apduBuffer[0] = status;
+        apdu.setOutgoingAndSend((short) 0, (short) 1);
+    }
+
+    /**
+     * Redeems a batch of any size streamed by command chaining: every command but the last has CLA_CHAINING set.
+     * Items may be split between commands. Each item is checked and spent as soon as it is complete,
+     * so only a split item is kept between commands and the batch size is not limited by RAM.
+     * P1 unused, P2 = denomination and keyset of the tokens, the same for the whole chain.
+     * Data format: the items of redeemBatch, split at any byte
+     * Response: [count][status bitmap] for the items completed by this command, bit i set if the i-th of them was redeemed
+     */
+    private void redeemStream(APDU apdu) {
+        byte[] buffer = loadApdu(apdu);
+        byte p2 = buffer[ISO7816.OFFSET_P2];
+        short offset = apdu.getOffsetCdata();
+        short end = (short) (offset + apdu.getIncomingLength());
+        short split = stream[1];
+        short count = 0;
+
+        // The chain is reopened only after this command succeeds, so that any error closes it
+        short open = stream[0];
+        stream[0] = 0;
+        if (open == 0)
+            split = 0;
+        else if (open != (short) ((p2 & 0xff) + 1))
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+        Keyset keyset = keyset(p2);
+        if (parties != 1)
+            ISOException.throwIt(Consts.E_INVALID_PARTY_COUNT);
+        // Make room for every item this command can complete before any of them is spent
+        if (keyset.ledger.free() < (short) ((short) (split + end - offset) / (short) (1 + 32 + pointSize())))
+            ISOException.throwIt(Consts.E_LEDGER_FULL);
+        Util.arrayFillNonAtomic(streamStatus, (short) 0, (short) streamStatus.length, (byte) 0);
+
+        // Complete the item split by the previous command
+        if (split > 0) {
+            short length = (short) (itemLength(streamItem[0]) - split);
+            if (length > (short) (end - offset))
+                length = (short) (end - offset);
+            Util.arrayCopyNonAtomic(buffer, offset, streamItem, split, length);
+            split += length;
+            offset += length;
+            if (split == itemLength(streamItem[0])) {
+                redeemItem(keyset, streamItem, (short) 1, count++);
+                split = 0;
+            }
+        }
+
+        // Redeem complete items in place
+        while (offset < end && (short) (offset + itemLength(buffer[offset])) <= end) {
+            redeemItem(keyset, buffer, (short) (offset + 1), count++);
+            offset += itemLength(buffer[offset]);
+        }
+
+        // Keep an item split by the end of this command for the next one
+        if (offset < end) {
+            split = (short) (end - offset);
+            Util.arrayCopyNonAtomic(buffer, offset, streamItem, (short) 0, split);
+        }
+        if (apdu.isCommandChainingCLA()) {
+            stream[0] = (short) ((p2 & 0xff) + 1);
+            stream[1] = split;
+        } else if (split != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        byte[] apduBuffer = apdu.getBuffer();
+        apduBuffer[0] = (byte) count;
+        short length = (short) ((short) (count + 7) / 8);
+        Util.arrayCopyNonAtomic(streamStatus, (short) 0, apduBuffer, (short) 1, length);
+        apdu.setOutgoingAndSend((short) 0, (short) (1 + length));
+    }
+
+    /**
+     * Redeems a complete item of a chained redeem batch, given the offset of its message, and records its status bit.
+     */
+    private void redeemItem(Keyset keyset, byte[] buffer, short message, short item) {
+        if ((short) (buffer[(short) (message - 1)] & Consts.ITEM_LENGTH_MASK) < 32)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        // Already spent messages, also earlier in this chain, are found in the ledger
+        if (keyset.ledger.contains(buffer, message) || !checkItem(keyset, buffer, message))
+            return;
+        spend(keyset, buffer, message);
+        streamStatus[(short) (item >> 3)] |= (byte) (1 << (item & 7));
+    }
+
+    /**
+     * Checks the token of a redeem batch item, given the offset of its message.
+     * A precomputed hash that does not match the message fails the item, not the command.
+     */
+    private boolean checkItem(Keyset keyset, byte[] buffer, short message) {
+        byte header = buffer[(short) (message - 1)];
+        short messageLength = (short) (header & Consts.ITEM_LENGTH_MASK);
+
+        // Compute or load H(message)
+        if ((header & Consts.ITEM_PRECOMPUTED) != 0) {
+            try {
+                h2c.hashLongPrecomputed(buffer, message, messageLength, buffer, (short) (message + messageLength + pointSize()), point1);
+            } catch (ISOException e) {
+                return false;
+            }
+        } else {
+            h2c.hashLong(buffer, message, messageLength, point1);
+        }
+
+        // Verify token: should be H(message) * secret
+        keyset.multiply(point1);
+        return isToken(point1, buffer, (short) (message + messageLength), pointSize());
+    }
+
+    /**
+     * Returns the length of a redeem batch item including its header.
+     */
+    private short itemLength(byte header) {
+        short length = (short) (1 + (header & Consts.ITEM_LENGTH_MASK) + pointSize());
+        return (header & Consts.ITEM_PRECOMPUTED) != 0 ? (short) (length + 65 + 1) : length;
+    }
+
+    /**
+     * Skips a redeem batch item, given the offset of its message.
+     * @return offset of the next item's message
+     */
+    private short nextItem(byte[] buffer, short message) {
+        return (short) (message + itemLength(buffer[(short) (message - 1)]));
+    }
+
+    /**
+     * Checks whether an earlier item of a redeem batch with the same message was already accepted.
+     */
+    private boolean isAccepted(byte[] buffer, short first, short message, byte status) {
+        short i = 0;
+        for (short other = first; other < message; other = nextItem(buffer, other), ++i) {
+            if ((status & (1 << i)) != 0 && Util.arrayCompare(buffer, other, buffer, message, (short) 32) == 0)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * No-operation command for testing and benchmarking.
      * Returns specified amount of dummy data for performance testing.
@@ -583,6 +1788,32 @@ public class JCMint extends Applet implements ExtendedLength {
         apdu.setOutgoingAndSend((short) 0, p1);
     }
 
+    /**
+     * Sends a response stored in largeBuffer, as much as the expected length allows.
+     * The rest is announced with SW 61xx and returned by subsequent GET RESPONSE commands.
+     */
+    private void sendLarge(APDU apdu, short offset, short length) {
+        short chunk = apdu.setOutgoing();
+        if (chunk > length)
+            chunk = length;
+        apdu.setOutgoingLength(chunk);
+        apdu.sendBytesLong(largeBuffer, offset, chunk);
+
+        pendingResponse[0] = (short) (offset + chunk);
+        pendingResponse[1] = (short) (length - chunk);
+        if (pendingResponse[1] > 0)
+            ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | (pendingResponse[1] > 255 ? 0 : pendingResponse[1])));
+    }
+
+    /**
+     * Returns the next part of a chained response.
+     */
+    private void getResponse(APDU apdu) {
+        if (pendingResponse[1] == 0)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        sendLarge(apdu, pendingResponse[0], pendingResponse[1]);
+    }
+
     /**
      * Loads APDU data, handling both standard and extended length APDUs.
      * For extended APDUs, data is copied to a larger buffer.
@@ -593,6 +1824,10 @@ public class JCMint extends Applet implements ExtendedLength {
     private byte[] loadApdu(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
         short recvLen = (short) (apdu.setIncomingAndReceive() + apdu.getOffsetCdata());
+
+        // Reject data that would not fit the large buffer
+        if (apdu.getIncomingLength() > (short) (largeBuffer.length - apdu.getOffsetCdata()))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
         // For standard APDUs, return the original buffer
         if (apdu.getOffsetCdata() == ISO7816.OFFSET_CDATA) {
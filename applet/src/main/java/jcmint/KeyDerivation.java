@@ -0,0 +1,78 @@
+package jcmint;
+
+import javacard.framework.JCSystem;
+import javacard.security.ECPrivateKey;
+import javacard.security.MessageDigest;
+import jcmint.jcmathlib.*;
+
+/**
+ * Derives the secret of every amount of a keyset from its master secret, so that only the master is stored.
+ * Amount 0 uses the master itself, amount a > 0 uses HMAC-SHA256(master, a) mod r.
+ */
+public class KeyDerivation {
+    private static final short BLOCK_SIZE = 64;
+    private static final byte IPAD = (byte) 0x36;
+    private static final byte OPAD = (byte) 0x5c;
+
+    private final MessageDigest md;
+    private final BigNat order;
+    private final byte[] buffer = JCSystem.makeTransientByteArray((short) (BLOCK_SIZE + 32), JCSystem.CLEAR_ON_RESET);
+
+    /**
+     * The digest is shared with the caller, it must not be in the middle of a hash when a secret is derived.
+     */
+    public KeyDerivation(MessageDigest md, BigNat order) {
+        this.md = md;
+        this.order = order;
+    }
+
+    /**
+     * Derives the secret of the amount into secret and, unless key is null, loads it into the private key.
+     */
+    public void derive(BigNat master, byte amount, BigNat secret, ECPrivateKey key) {
+        if (amount == 0) {
+            secret.clone(master);
+        } else {
+            // Inner hash: SHA-256((master ^ ipad) || amount), the master is zero-padded to one block
+            master.copyToByteArray(buffer, BLOCK_SIZE);
+            pad(IPAD);
+            md.reset();
+            md.update(buffer, (short) 0, BLOCK_SIZE);
+            buffer[0] = amount;
+            md.doFinal(buffer, (short) 0, (short) 1, buffer, (short) 0);
+
+            // Outer hash: SHA-256((master ^ opad) || inner), the inner hash is kept past the pad
+            master.copyToByteArray(buffer, BLOCK_SIZE);
+            md.reset();
+            for (short i = 0; i < (short) 32; ++i) {
+                buffer[(short) (BLOCK_SIZE + i)] ^= OPAD;
+            }
+            md.update(buffer, BLOCK_SIZE, (short) 32);
+            for (short i = 0; i < (short) 32; ++i) {
+                buffer[(short) (BLOCK_SIZE + i)] = OPAD;
+            }
+            md.update(buffer, BLOCK_SIZE, (short) 32);
+            md.doFinal(buffer, (short) 0, (short) 32, buffer, (short) 0);
+
+            secret.fromByteArray(buffer, (short) 0, (short) 32);
+            secret.mod(order);
+        }
+
+        if (key != null) {
+            secret.copyToByteArray(buffer, (short) 0);
+            key.setS(buffer, (short) 0, (short) 32);
+        }
+    }
+
+    /**
+     * Writes the master at the end of the buffer xor the pad into the first block, zero-padded.
+     */
+    private void pad(byte pad) {
+        for (short i = 0; i < (short) 32; ++i) {
+            buffer[i] = (byte) (buffer[(short) (BLOCK_SIZE + i)] ^ pad);
+        }
+        for (short i = 32; i < BLOCK_SIZE; ++i) {
+            buffer[i] = pad;
+        }
+    }
+}
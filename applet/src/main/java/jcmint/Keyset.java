@@ -0,0 +1,181 @@
+package jcmint;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.ECPrivateKey;
+import javacard.security.KeyAgreement;
+import javacard.security.KeyBuilder;
+import jcmint.jcmathlib.*;
+
+/**
+ * A single signing epoch of all denominations: the master secret, the partial keys of all parties,
+ * and the ledger of messages spent against any amount of this epoch.
+ * Only the master secret is stored, the secret of the selected amount is derived from it into RAM.
+ * The partial keys stay in an EEPROM table sized at install, which would not fit in RAM for large federations;
+ * federations of up to CACHED_PARTIES are served from a RAM copy of the table.
+ */
+public class Keyset {
+    public final BigNat secret;         // Secret of the selected amount
+    public final byte[] mintKey;
+    public final Ledger ledger;
+
+    // Persistent originals of the RAM copies
+    private final BigNat storedSecret;
+    private final byte[] storedMintKey;
+    private final byte[] storedPartialKeys;
+    private short parties;
+
+    // RAM copy of the partial keys of a small federation, larger ones are read from EEPROM
+    private final byte[] cachedPartialKeys;
+
+    // Per-amount secrets are derived on select, with the public key of the selected amount computed on first use
+    private final KeyDerivation derivation;
+    private final byte[] publicKey;
+    private final short[] selected;     // (amount + 1 of the secret in RAM, 1 if publicKey is its public key)
+
+    // Secret preloaded in a key agreement, so that multiplications skip the key reload. The key is transient, so that
+    // switching amounts never writes EEPROM, and is reloaded after a deselect cleared it
+    private final ECCurve curve;
+    private final ECPrivateKey privateKey;
+    private final byte[] keyAmount;     // Amount + 1 whose secret the private key holds, 0 once cleared
+    private final KeyAgreement keyAgreement;  // null if the card lacks XY key agreement
+
+    public Keyset(ECCurve curve, ResourceManager rm, byte maxParties, KeyDerivation derivation) {
+        this.curve = curve;
+        this.derivation = derivation;
+        publicKey = JCSystem.makeTransientByteArray((short) 65, JCSystem.CLEAR_ON_DESELECT);
+        selected = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+        secret = new BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT, rm);
+        storedPartialKeys = new byte[(short) (65 * maxParties)];
+        cachedPartialKeys = JCSystem.makeTransientByteArray(
+                (short) (65 * (maxParties < Consts.CACHED_PARTIES ? maxParties : Consts.CACHED_PARTIES)), JCSystem.CLEAR_ON_DESELECT);
+        mintKey = JCSystem.makeTransientByteArray((short) 65, JCSystem.CLEAR_ON_DESELECT);
+        storedSecret = new BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+        storedMintKey = new byte[65];
+        ledger = new Ledger(Consts.LEDGER_CAPACITY);
+
+        if (OperationSupport.getInstance().EC_HW_XY) {
+            privateKey = (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE_TRANSIENT_DESELECT, curve.KEY_BIT_LENGTH, false);
+            keyAmount = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+            // keyAgreement = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH_PLAIN_XY, false);
+            keyAgreement = KeyAgreement.getInstance((byte) 6, false);
+        } else {
+            privateKey = null;
+            keyAmount = null;
+            keyAgreement = null;
+        }
+    }
+
+    public void setup(short parties, byte[] secret, short secretOffset, byte[] partialKeys, short partialKeysOffset) {
+        storedSecret.fromByteArray(secret, secretOffset, (short) 32);
+        Util.arrayCopyNonAtomic(partialKeys, partialKeysOffset, storedPartialKeys, (short) 0, (short) (65 * parties));
+        this.parties = parties;
+        cachePartialKeys();
+        this.secret.clone(storedSecret);
+        ledger.reset();
+        selected[0] = 1;
+        selected[1] = 0;
+
+        if (keyAgreement != null) {
+            prepareKey();
+            privateKey.setS(secret, secretOffset, (short) 32);
+            keyAmount[0] = 1;
+            keyAgreement.init(privateKey);
+        }
+    }
+
+    /**
+     * Stores the combined mint key, computed by the caller from the partial keys.
+     */
+    public void setMintKey(byte[] mintKey, short mintKeyOffset) {
+        Util.arrayCopyNonAtomic(mintKey, mintKeyOffset, storedMintKey, (short) 0, (short) 65);
+        Util.arrayCopyNonAtomic(storedMintKey, (short) 0, this.mintKey, (short) 0, (short) 65);
+    }
+
+    /**
+     * Refills the RAM copies and re-initializes the key agreement, neither of which survives a deselect or reset.
+     * Amount 0 is selected afterwards.
+     */
+    public void updateAfterReset() {
+        Util.arrayCopyNonAtomic(storedMintKey, (short) 0, mintKey, (short) 0, (short) 65);
+        cachePartialKeys();
+        selected[0] = 0;
+        select((byte) 0);
+    }
+
+    /**
+     * Returns the table of uncompressed partial keys, party i at offset 65 * i.
+     */
+    public byte[] partialKeys() {
+        return parties <= Consts.CACHED_PARTIES ? cachedPartialKeys : storedPartialKeys;
+    }
+
+    /**
+     * Copies the partial keys into RAM if the federation is small enough.
+     */
+    private void cachePartialKeys() {
+        if (parties <= Consts.CACHED_PARTIES)
+            Util.arrayCopyNonAtomic(storedPartialKeys, (short) 0, cachedPartialKeys, (short) 0, (short) (65 * parties));
+    }
+
+    /**
+     * Derives the secret of the amount into RAM and loads it into the key agreement.
+     * Consecutive selections of the same amount are free, so callers should group their work by amount.
+     */
+    public void select(byte amount) {
+        if (selected[0] == (short) (amount + 1))
+            return;
+
+        if (keyAgreement == null || keyAmount[0] == (byte) (amount + 1) || storedSecret.isZero()) {
+            // The key is already loaded, or there is none before setup
+            derivation.derive(storedSecret, amount, secret, null);
+        } else {
+            prepareKey();
+            derivation.derive(storedSecret, amount, secret, privateKey);
+            keyAmount[0] = (byte) (amount + 1);
+        }
+        if (keyAgreement != null && privateKey.isInitialized())
+            keyAgreement.init(privateKey);
+        selected[0] = (short) (amount + 1);
+        selected[1] = 0;
+    }
+
+    /**
+     * Sets the curve of the private key again if a deselect cleared it along with the secret.
+     */
+    private void prepareKey() {
+        if (keyAmount[0] == 0)
+            curve.setParameters(privateKey);
+    }
+
+    /**
+     * Returns the selected amount.
+     */
+    public byte getAmount() {
+        return (byte) (selected[0] - 1);
+    }
+
+    /**
+     * Returns the public key of the selected amount, uncompressed, computing it with the point on first use.
+     */
+    public byte[] publicKey(ECPoint point) {
+        if (selected[1] == 0) {
+            point.decode(point.getCurve().G, (short) 0, (short) 65);
+            multiply(point);
+            point.getW(publicKey, (short) 0);
+            selected[1] = 1;
+        }
+        return publicKey;
+    }
+
+    /**
+     * Multiplies the point by the secret of this keyset.
+     */
+    public void multiply(ECPoint point) {
+        if (keyAgreement != null) {
+            point.multiplication(keyAgreement);
+        } else {
+            point.multiplication(secret);
+        }
+    }
+}
@@ -1,24 +1,74 @@
 package jcmint;
 
+import javacard.framework.ISOException;
 import javacard.framework.Util;
 
+/**
+ * Spent token ledger stored as an open-addressing hash table with linear probing.
+ * Lookups stay short as long as the table is kept at most three quarters full.
+ */
 public class Ledger {
-    private final byte[] tokens = new byte[32 * 100];
-    short last = 0;
+    private final byte[] tokens;
+    private final byte[] occupied;
+    private final short mask;
+    private final short limit;
+    short last = 0;  // Number of stored entries
 
+    /**
+     * @param capacity number of slots; MUST be a power of two
+     */
+    public Ledger(short capacity) {
+        tokens = new byte[(short) (capacity * 32)];
+        occupied = new byte[capacity];
+        mask = (short) (capacity - 1);
+        limit = (short) (capacity - (short) (capacity / 4));
+    }
+
+    private short slot(byte[] data, short offset) {
+        // Fold the whole entry so that textual (hex) secrets spread over the table as well
+        short h = 0;
+        for (short i = 0; i < 32; ++i) {
+            h = (short) ((short) (h * 31) + (data[(short) (offset + i)] & 0xff));
+        }
+        return (short) (h & mask);
+    }
+
+    /**
+     * Stores the entry, callers wrap it in a transaction. The entry bytes are copied non-atomically, they only
+     * count once the occupied flag of their slot is committed.
+     */
     public void append(byte[] data, short offset) {
-        Util.arrayCopyNonAtomic(data, offset, tokens, (short) (last++ * 32), (short) 32);
+        if (last >= limit)
+            ISOException.throwIt(Consts.E_LEDGER_FULL);
+
+        short i = slot(data, offset);
+        while (occupied[i] != 0) {
+            i = (short) ((short) (i + 1) & mask);
+        }
+        Util.arrayCopyNonAtomic(data, offset, tokens, (short) (i * 32), (short) 32);
+        occupied[i] = 1;
+        ++last;
     }
 
     public boolean contains(byte[] data, short offset) {
-        for (short i = 0; i < last; ++i) {
+        short i = slot(data, offset);
+        while (occupied[i] != 0) {
             if (Util.arrayCompare(data, offset, tokens, (short) (i * 32), (short) 32) == 0)
                 return true;
+            i = (short) ((short) (i + 1) & mask);
         }
         return false;
     }
 
+    /**
+     * @return number of entries that can still be appended
+     */
+    public short free() {
+        return (short) (limit - last);
+    }
+
     public void reset() {
+        Util.arrayFillNonAtomic(occupied, (short) 0, (short) occupied.length, (byte) 0);
         last = 0;
     }
 }
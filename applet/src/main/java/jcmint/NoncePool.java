@@ -0,0 +1,47 @@
+package jcmint;
+
+import javacard.framework.Util;
+import jcmint.jcmathlib.*;
+
+/**
+ * Bounded pool of precomputed DLEQ nonces r together with their commitments r*G.
+ * Every pair is handed out at most once: the entry is released before it is read,
+ * so a torn transaction can lose a pair but never reuse it.
+ */
+public class NoncePool {
+    private final byte[] nonces;
+    private final byte[] commitments;
+    private short count = 0;
+
+    public NoncePool(short capacity) {
+        nonces = new byte[(short) (capacity * 32)];
+        commitments = new byte[(short) (capacity * 65)];
+    }
+
+    public short size() {
+        return count;
+    }
+
+    public boolean isFull() {
+        return (short) (count * 32) == (short) nonces.length;
+    }
+
+    public void add(BigNat nonce, byte[] commitment, short commitmentOffset) {
+        nonce.prependZeros((short) 32, nonces, (short) (count * 32));
+        Util.arrayCopyNonAtomic(commitment, commitmentOffset, commitments, (short) (count * 65), (short) 65);
+        ++count;
+    }
+
+    /**
+     * Takes a pair from the pool.
+     * @return false if the pool is empty
+     */
+    public boolean take(BigNat nonce, byte[] commitment, short commitmentOffset) {
+        if (count == 0)
+            return false;
+        --count;
+        nonce.fromByteArray(nonces, (short) (count * 32), (short) 32);
+        Util.arrayCopyNonAtomic(commitments, (short) (count * 65), commitment, commitmentOffset, (short) 65);
+        return true;
+    }
+}
@@ -446,6 +446,99 @@ public class jcmathlib {
             mod(p);
             modExp(exp, p);
         }
+
+        /**
+         * Computes square root of this BigNat modulo prime p using Tonelli Shanks Algorithm with constants precomputed
+         * for p. The result (one of the two roots) is stored to this.
+         *
+         * @param p prime modulo
+         * @param params Tonelli Shanks constants precomputed for p
+         * @return true if this is a quadratic residue modulo p; false otherwise
+         */
+        public boolean modSqrt(BigNat p, ModSqrtParams params) {
+            BigNat t = rm.BN_A;
+            BigNat c = rm.BN_B;
+            BigNat b = rm.BN_C;
+
+            if (isZero()) {
+                return true;
+            }
+            t.clone(this);
+            t.modExp(params.qBN, p); // t = n^Q
+            modExp(params.qExpBN, p); // R = n^((Q+1)/2)
+            c.clone(params.cBN);
+            short m = params.S;
+
+            while (!t.isOne()) {
+                // Find the least i, 0 < i < M, such that t^(2^i) = 1
+                short i = 0;
+                b.clone(t);
+                while (!b.isOne()) {
+                    ++i;
+                    if (i == m) {
+                        return false;
+                    }
+                    b.modSq(p);
+                }
+
+                // b = c^(2^(M-i-1))
+                b.clone(c);
+                for (short j = (short) (m - i - 1); j > 0; --j) {
+                    b.modSq(p);
+                }
+                m = i;
+                c.clone(b);
+                c.modSq(p);
+                t.modMult(c, p);
+                modMult(b, p);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Tonelli Shanks constants of a prime modulus p = Q * 2^S + 1 with odd Q. Computed once and stored in EEPROM so
+     * that {@link BigNat#modSqrt(BigNat, ModSqrtParams)} does not repeat the setup for every square root.
+     */
+    public static class ModSqrtParams {
+        public final short S;
+        public final BigNat qBN, qExpBN, cBN; // Q, (Q+1)/2 and z^Q for a quadratic non-residue z
+
+        /**
+         * Precomputes Tonelli Shanks constants for the provided prime.
+         *
+         * @param p prime modulo
+         * @param rm resource manager
+         */
+        public ModSqrtParams(BigNat p, ResourceManager rm) {
+            BigNat z = rm.BN_C;
+
+            qBN = new BigNat(p.length(), JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+            qExpBN = new BigNat(p.length(), JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+            cBN = new BigNat(p.length(), JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+
+            // Factor out powers of 2 from p-1
+            qBN.clone(p);
+            qBN.decrement();
+            short s = 0;
+            while (!qBN.isOdd()) {
+                qBN.shiftRight((short) 1);
+                ++s;
+            }
+            S = s;
+            qExpBN.clone(qBN);
+            qExpBN.increment();
+            qExpBN.shiftRight((short) 1);
+
+            // Find the first quadratic non-residue z by brute-force search
+            z.setSize(p.length());
+            z.setValue((byte) 2);
+            while (z.isQuadraticResidue(p)) {
+                z.increment();
+            }
+            cBN.clone(z);
+            cBN.modExp(qBN, p);
+        }
     }
 
     /**
@@ -702,6 +795,16 @@ public class jcmathlib {
             return (byte) (value[(short) (value.length - 1)] & (byte) 1) != (byte) 0;
         }
 
+        /**
+         * Check if a given bit of stored BigNat is set, counting from the least significant bit.
+         */
+        public boolean isBitSet(short bit) {
+            if (bit >= (short) (size * 8)) {
+                return false;
+            }
+            return (byte) (value[(short) (value.length - 1 - (short) (bit >> 3))] & (byte) (1 << (short) (bit & 7))) != (byte) 0;
+        }
+
         /**
          * Returns true if this BigNat is lesser than the other.
          */
@@ -1045,6 +1148,8 @@ public class jcmathlib {
 
         public byte[] p, a, b, G, r;
         public BigNat pBN, aBN, bBN, rBN;
+        public BigNat sqrtExpBN; // (p+1)/4 if p = 3 (mod 4); null otherwise
+        public ModSqrtParams sqrtParams; // Tonelli Shanks constants if p = 1 (mod 4); null otherwise
 
 
         public KeyPair disposablePair;
@@ -1082,6 +1187,16 @@ public class jcmathlib {
             rBN = new BigNat(COORD_SIZE, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
             rBN.fromByteArray(r, (short) 0, (short) r.length);
 
+            // Square roots modulo p = 3 (mod 4) take a single exponentiation by (p+1)/4
+            if ((short) (p[(short) (p.length - 1)] & 0x03) == (short) 0x03) {
+                sqrtExpBN = new BigNat(COORD_SIZE, JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+                sqrtExpBN.clone(pBN);
+                sqrtExpBN.increment();
+                sqrtExpBN.shiftRight((short) 2);
+            } else {
+                sqrtParams = new ModSqrtParams(pBN, rm);
+            }
+
             disposablePair = newKeyPair(null);
             disposablePriv = (ECPrivateKey) disposablePair.getPrivate();
             disposablePub = (ECPublicKey) disposablePair.getPublic();
@@ -1114,24 +1229,27 @@ public class jcmathlib {
                 privKey = (ECPrivateKey) keyPair.getPrivate();
             }
 
-            privKey.setFieldFP(p, (short) 0, (short) p.length);
-            privKey.setA(a, (short) 0, (short) a.length);
-            privKey.setB(b, (short) 0, (short) b.length);
-            privKey.setG(G, (short) 0, (short) G.length);
-            privKey.setR(r, (short) 0, (short) r.length);
-            privKey.setK((short) 1);
-
-            pubKey.setFieldFP(p, (short) 0, (short) p.length);
-            pubKey.setA(a, (short) 0, (short) a.length);
-            pubKey.setB(b, (short) 0, (short) b.length);
-            pubKey.setG(G, (short) 0, (short) G.length);
-            pubKey.setR(r, (short) 0, (short) r.length);
-            pubKey.setK((short) 1);
+            setParameters(privKey);
+            setParameters(pubKey);
 
             keyPair.genKeyPair();
 
             return keyPair;
         }
+
+        /**
+         * Sets the parameters of this curve on the key, e.g. again after a transient key was cleared.
+         *
+         * @param key key to set the curve of
+         */
+        public void setParameters(ECKey key) {
+            key.setFieldFP(p, (short) 0, (short) p.length);
+            key.setA(a, (short) 0, (short) a.length);
+            key.setB(b, (short) 0, (short) b.length);
+            key.setG(G, (short) 0, (short) G.length);
+            key.setR(r, (short) 0, (short) r.length);
+            key.setK((short) 1);
+        }
     }
 
     /**
@@ -1473,6 +1591,20 @@ public class jcmathlib {
             }
         }
 
+        /**
+         * Multiply value of this point by the scalar held in the private key of an initialized XY key agreement.
+         * Stores the result into this point. Avoids reloading the scalar into a key for every multiplication.
+         *
+         * @param ka key agreement of type ALG_EC_SVDP_DH_PLAIN_XY initialized with the scalar
+         */
+        public void multiplication(KeyAgreement ka) {
+            byte[] pointBuffer = rm.POINT_ARRAY_B;
+
+            short len = getW(pointBuffer, (short) 0);
+            len = ka.generateSecret(pointBuffer, (short) 0, len, rm.POINT_ARRAY_A, (short) 0);
+            setW(rm.POINT_ARRAY_A, (short) 0, len);
+        }
+
         /**
          * Multiply this point by a given scalar and add another point to the result.
          *
@@ -1512,6 +1644,75 @@ public class jcmathlib {
             return len;
         }
 
+        /**
+         * Computes the linear combination sum(scalars[i] * points[i]) for i < count and stores it into this point.
+         * This point must not be one of the points. The points are not modified.
+         * Only cards without EC_HW_ADD share one doubling chain across the terms (Straus); with hardware addition
+         * each term costs one multiply-and-add, so the combination is no cheaper than separate multiplications.
+         *
+         * @param scalars scalars of the terms
+         * @param points points of the terms
+         * @param count number of terms
+         */
+        public void multiScalar(BigNat[] scalars, ECPoint[] points, short count) {
+            if (OperationSupport.getInstance().EC_HW_ADD) {
+                hwMultiScalar(scalars, points, count);
+            } else {
+                swMultiScalar(scalars, points, count);
+            }
+        }
+
+        /**
+         * Computes the linear combination term by term, each further term in one multiply-and-add key agreement.
+         */
+        public void hwMultiScalar(BigNat[] scalars, ECPoint[] points, short count) {
+            byte[] pointBuffer = rm.POINT_ARRAY_A;
+
+            copy(points[0]);
+            multiplication(scalars[0]);
+            for (short i = 1; i < count; ++i) {
+                setW(pointBuffer, (short) 0, points[i].multAndAddKA(scalars[i], this, pointBuffer, (short) 0));
+            }
+        }
+
+        /**
+         * Computes the linear combination with interleaved double-and-add (Straus), sharing one doubling chain
+         * across all terms. The result must not be the point at infinity.
+         */
+        public void swMultiScalar(BigNat[] scalars, ECPoint[] points, short count) {
+            short bits = 0;
+            for (short i = 0; i < count; ++i) {
+                if ((short) (scalars[i].length() * 8) > bits) {
+                    bits = (short) (scalars[i].length() * 8);
+                }
+            }
+
+            boolean started = false;
+            for (short bit = (short) (bits - 1); bit >= 0; --bit) {
+                if (started) {
+                    if (OperationSupport.getInstance().EC_SW_DOUBLE) {
+                        swDouble();
+                    } else {
+                        makeDouble();
+                    }
+                }
+                for (short i = 0; i < count; ++i) {
+                    if (!scalars[i].isBitSet(bit)) {
+                        continue;
+                    }
+                    if (started) {
+                        add(points[i]);
+                    } else {
+                        copy(points[i]);
+                        started = true;
+                    }
+                }
+            }
+            if (!started) {
+                ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+            }
+        }
+
         /**
          * Multiply value of this point by provided scalar using XY key agreement. Stores the result into this point.
          *
@@ -1658,6 +1859,7 @@ public class jcmathlib {
         private boolean fromX(BigNat x) {
             BigNat ySq = rm.EC_BN_C;
             BigNat y = rm.EC_BN_D;
+            BigNat tmp = rm.EC_BN_E;
             byte[] pointBuffer = rm.POINT_ARRAY_A;
 
             //Y^2 = X^3 + XA + B = x(x^2+A)+B
@@ -1667,10 +1869,17 @@ public class jcmathlib {
             ySq.modMult(x, curve.pBN);
             ySq.modAdd(curve.bBN, curve.pBN);
             y.clone(ySq);
-            if (!y.isQuadraticResidue(curve.pBN)) {
+            if (!modSqrt(y)) {
                 return false;
             }
-            y.modSqrt(curve.pBN);
+            if (curve.sqrtExpBN != null) {
+                // The candidate root is checked by squaring instead of a separate residuosity test
+                tmp.clone(y);
+                tmp.modSq(curve.pBN);
+                if (!tmp.equals(ySq)) {
+                    return false;
+                }
+            }
 
             // Construct public key with <x, y_1>
             pointBuffer[0] = 0x04;
@@ -1680,6 +1889,21 @@ public class jcmathlib {
             return true;
         }
 
+        /**
+         * Computes one of the square roots of y modulo p of the curve and stores it into y using the constants
+         * precomputed by the curve. With the (p+1)/4 exponent the result is valid only if y is a quadratic residue.
+         *
+         * @param y the value to compute the square root of
+         * @return false if y was found not to be a quadratic residue; true otherwise
+         */
+        private boolean modSqrt(BigNat y) {
+            if (curve.sqrtExpBN != null) {
+                y.modExp(curve.sqrtExpBN, curve.pBN);
+                return true;
+            }
+            return y.modSqrt(curve.pBN, curve.sqrtParams);
+        }
+
         /**
          * Returns true if Y coordinate is even; false otherwise.
          *
@@ -1693,6 +1917,36 @@ public class jcmathlib {
             return result;
         }
 
+        /**
+         * Checks whether this point satisfies the curve equation.
+         *
+         * @return true if the point lies on the curve; false otherwise
+         */
+        public boolean isOnCurve() {
+            BigNat x = rm.EC_BN_D;
+            BigNat y = rm.EC_BN_C;
+            BigNat ySq = rm.EC_BN_E;
+            byte[] pointBuffer = rm.POINT_ARRAY_A;
+
+            point.getW(pointBuffer, (short) 0);
+            x.setSize(curve.COORD_SIZE);
+            x.fromByteArray(pointBuffer, (short) 1, curve.COORD_SIZE);
+            y.setSize(curve.COORD_SIZE);
+            y.fromByteArray(pointBuffer, (short) (1 + curve.COORD_SIZE), curve.COORD_SIZE);
+            if (!x.isLesser(curve.pBN) || !y.isLesser(curve.pBN)) {
+                return false;
+            }
+
+            //Y^2 = X^3 + XA + B = x(x^2+A)+B
+            ySq.clone(x);
+            ySq.modSq(curve.pBN);
+            ySq.modAdd(curve.aBN, curve.pBN);
+            ySq.modMult(x, curve.pBN);
+            ySq.modAdd(curve.bBN, curve.pBN);
+            y.modSq(curve.pBN);
+            return y.equals(ySq);
+        }
+
         /**
          * Compares this and provided point for equality. The comparison is made using hash of both values to prevent leak of position of mismatching byte.
          *
@@ -1745,17 +1999,36 @@ public class jcmathlib {
                 BigNat y = rm.EC_BN_C;
                 BigNat x = rm.EC_BN_D;
                 BigNat p = rm.EC_BN_E;
+                BigNat ySq = rm.EC_BN_F;
                 byte[] pointBuffer = rm.POINT_ARRAY_A;
 
+                if (point[offset] != (byte) 0x02 && point[offset] != (byte) 0x03) {
+                    ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+                }
+                x.setSize(curve.COORD_SIZE);
                 x.fromByteArray(point, (short) (offset + 1), curve.COORD_SIZE);
+                if (!x.isLesser(curve.pBN)) {
+                    ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+                }
 
                 //Y^2 = X^3 + XA + B = x(x^2+A)+B
-                y.clone(x);
-                y.modSq(curve.pBN);
-                y.modAdd(curve.aBN, curve.pBN);
-                y.modMult(x, curve.pBN);
-                y.modAdd(curve.bBN, curve.pBN);
-                y.modSqrt(curve.pBN);
+                ySq.clone(x);
+                ySq.modSq(curve.pBN);
+                ySq.modAdd(curve.aBN, curve.pBN);
+                ySq.modMult(x, curve.pBN);
+                ySq.modAdd(curve.bBN, curve.pBN);
+                y.clone(ySq);
+                if (!modSqrt(y)) {
+                    ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+                }
+                if (curve.sqrtExpBN != null) {
+                    // An x without a point on the curve must not be turned into a point on the twist
+                    p.clone(y);
+                    p.modSq(curve.pBN);
+                    if (!p.equals(ySq)) {
+                        ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+                    }
+                }
 
                 pointBuffer[0] = 0x04;
                 x.prependZeros(curve.COORD_SIZE, pointBuffer, (short) 1);
@@ -1805,7 +2078,7 @@ public class jcmathlib {
                 y.modAdd(curve.aBN, curve.pBN);
                 y.modMult(x, curve.pBN);
                 y.modAdd(curve.bBN, curve.pBN);
-                y.modSqrt(curve.pBN);
+                modSqrt(y);
                 boolean odd = y.isOdd();
                 if ((!odd && output[offset] != (byte) 0x02) || (odd && output[offset] != (byte) 0x03)) {
                     p.clone(curve.pBN);
@@ -1881,6 +2154,122 @@ public class jcmathlib {
         }
     }
 
+    /**
+     * Comb table of a fixed base point B for multiplications without a key agreement. With w teeth spaced
+     * d = ceil(bits / w) apart, entry j holds sum(2^(t*d) * B) over the bits t set in j, so a multiplication
+     * takes d - 1 doublings and at most d additions. The table takes (2^w - 1) * POINT_SIZE bytes of EEPROM,
+     * allocated through the resource manager so that it shows in {@link ObjectAllocator#getAllocatedInEEPROM()}.
+     */
+    public static class FixedBaseTable {
+        public final short TEETH, SPACING;
+        private final byte[] table;
+        private final ECCurve curve;
+        private final ECPoint entry;
+
+        /**
+         * Precomputes the comb table of a base point. Done once, the table is never modified afterwards.
+         *
+         * @param curve curve of the base point
+         * @param base SEC1-encoded uncompressed base point
+         * @param teeth number of teeth w, the table has 2^w - 1 entries
+         * @param tmp scratch point, its value is overwritten
+         */
+        public FixedBaseTable(ECCurve curve, byte[] base, short teeth, ECPoint tmp) {
+            this.curve = curve;
+            TEETH = teeth;
+            SPACING = (short) ((short) (curve.KEY_BIT_LENGTH + teeth - 1) / teeth);
+            table = curve.rm.memAlloc.allocateByteArray(length(curve, teeth), JCSystem.MEMORY_TYPE_PERSISTENT);
+            entry = new ECPoint(curve);
+
+            byte[] scalar = curve.rm.ARRAY_B;
+            short scalarLength = (short) (curve.KEY_BIT_LENGTH / 8);
+            for (short t = 0; t < teeth; ++t) {
+                // Tooth t alone: 2^(t*d) * B
+                short tooth = (short) (1 << t);
+                entry.setW(base, (short) 0, curve.POINT_SIZE);
+                if (t > 0) {
+                    short bit = (short) (t * SPACING);
+                    Util.arrayFillNonAtomic(scalar, (short) 0, scalarLength, (byte) 0);
+                    scalar[(short) (scalarLength - 1 - (short) (bit >> 3))] = (byte) (1 << (short) (bit & 7));
+                    entry.multiplication(scalar, (short) 0, scalarLength);
+                }
+                entry.getW(table, offset(tooth));
+
+                // Tooth t together with every combination of the lower teeth
+                for (short j = 1; j < tooth; ++j) {
+                    tmp.setW(table, offset(j), curve.POINT_SIZE);
+                    tmp.add(entry);
+                    tmp.getW(table, offset((short) (tooth + j)));
+                }
+            }
+        }
+
+        /**
+         * Returns the EEPROM size of a table with the given number of teeth without allocating it.
+         *
+         * @param curve curve of the base point
+         * @param teeth number of teeth
+         * @return table size in bytes
+         */
+        public static short length(ECCurve curve, short teeth) {
+            return (short) ((short) ((short) (1 << teeth) - 1) * curve.POINT_SIZE);
+        }
+
+        /**
+         * Returns the EEPROM size of this table.
+         *
+         * @return table size in bytes
+         */
+        public short length() {
+            return (short) table.length;
+        }
+
+        private short offset(short index) {
+            return (short) ((short) (index - 1) * curve.POINT_SIZE);
+        }
+
+        /**
+         * Multiplies the base point by the provided scalar and stores the result into the provided point.
+         * The result must not be the point at infinity. Columns without a set bit are skipped, so the running time
+         * depends on the scalar: only use public scalars.
+         *
+         * @param scalar value of scalar for multiplication, at most KEY_BIT_LENGTH bits
+         * @param result point to store the result into
+         */
+        public void multiply(BigNat scalar, ECPoint result) {
+            boolean started = false;
+            for (short column = (short) (SPACING - 1); column >= 0; --column) {
+                if (started) {
+                    if (OperationSupport.getInstance().EC_SW_DOUBLE) {
+                        result.swDouble();
+                    } else {
+                        result.makeDouble();
+                    }
+                }
+                short index = 0;
+                for (short t = (short) (TEETH - 1); t >= 0; --t) {
+                    index = (short) (index << 1);
+                    if (scalar.isBitSet((short) (t * SPACING + column))) {
+                        index |= 1;
+                    }
+                }
+                if (index == 0) {
+                    continue;
+                }
+                if (started) {
+                    entry.setW(table, offset(index), curve.POINT_SIZE);
+                    result.add(entry);
+                } else {
+                    result.setW(table, offset(index), curve.POINT_SIZE);
+                    started = true;
+                }
+            }
+            if (!started) {
+                ISOException.throwIt(ReturnCodes.SW_ECPOINT_INVALID);
+            }
+        }
+    }
+
     /**
      * The control point for unified allocation of arrays and objects with customable
      * specification of allocator type (RAM/EEPROM) for particular array. Allows for
@@ -2080,6 +2469,8 @@ public class jcmathlib {
         public boolean EC_HW_X = true;
         public boolean EC_HW_ADD = false;
         public boolean EC_SW_DOUBLE = false;
+        public boolean EC_GEN_PAIR = false;
+        public short EC_FIXED_BASE_TEETH = 0;  // Teeth of the generator comb table, 0 for no table
 
         private OperationSupport() {
         }
@@ -2098,12 +2489,14 @@ public class jcmathlib {
                     EC_HW_XY = true;
                     EC_HW_ADD = true;
                     EC_SW_DOUBLE = true;
+                    EC_GEN_PAIR = true;
                     break;
                 case JCOP21:
                     RSA_PUB = true;
                     RSA_EXTRA_MOD = true;
                     RSA_APPEND_MOD = true;
                     EC_SW_DOUBLE = true;
+                    EC_FIXED_BASE_TEETH = 4;
                     break;
                 case GD60:
                     RSA_PUB = true;
@@ -2121,11 +2514,13 @@ public class jcmathlib {
                     RSA_PUB = true;
                     EC_HW_XY = true;
                     EC_HW_ADD = true;
+                    EC_GEN_PAIR = true;
                     break;
                 case JCOP4_P71:
                     DEFERRED_INITIALIZATION = true;
                     EC_HW_XY = true;
                     EC_HW_ADD = true;
+                    EC_GEN_PAIR = true;
                     break;
                 case SECORA:
                     MIN_RSA_BIT_LENGTH = 1024;
@@ -2134,6 +2529,7 @@ public class jcmathlib {
                     RSA_EXTRA_MOD = true;
                     RSA_APPEND_MOD = true;
                     EC_HW_XY = true;
+                    EC_GEN_PAIR = true;
                     break;
                 default:
                     break;
@@ -3,6 +3,7 @@ package tests;
 import cz.muni.fi.crocs.rcard.client.Util;
 import javacard.framework.ISO7816;
 import jcmint.Consts;
+import cz.muni.fi.crocs.rcard.client.CardManager;
 import cz.muni.fi.crocs.rcard.client.CardType;
 import jcmint.HexUtil;
 import org.bouncycastle.jce.ECNamedCurveTable;
@@ -16,7 +17,11 @@ import javax.smartcardio.ResponseAPDU;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Test suite for the JCMint smart card applet.
@@ -173,6 +178,26 @@ public class AppletTest extends BaseTest {
         Assertions.assertTrue(ProtocolManager.verifyProof(hashedPoint, mintKey, proof));
     }
 
+    /**
+     * Tests that the proof of a derived amount is made with that amount's key, not the master key.
+     */
+    @Test
+    public void testVerifyProofAmount() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        BigInteger[] secrets = new BigInteger[1];
+        ECPoint mintKey = pm.setup(secrets);
+
+        int amount = 3;
+        byte[] message = ProtocolManager.randomMessage(false);
+        ECPoint hashedPoint = pm.hashToCurve(message);
+        ECPoint token = hashedPoint.multiply(ProtocolManager.deriveSecret(secrets[0], amount));
+        byte[] proof = pm.verify(message, token, null, amount);
+
+        Assertions.assertArrayEquals(token.getEncoded(false), Arrays.copyOfRange(proof, 0, 65));
+        Assertions.assertTrue(ProtocolManager.verifyProof(hashedPoint, pm.keys(amount, false), proof));
+        Assertions.assertFalse(ProtocolManager.verifyProof(hashedPoint, mintKey, proof));
+    }
+
     /**
      * Tests the token swap functionality for multi-party scenarios.
      * Tests both with and without precomputed hash values for optimization.
@@ -255,6 +280,18 @@ public class AppletTest extends BaseTest {
         }
     }
 
+    /**
+     * Tests redemption with the verification context installed in EEPROM instead of RAM.
+     */
+    @Test
+    public void testRedeemPersistentContext() throws Exception {
+        byte[] installData = installData(Consts.MAX_PARTIES, Consts.INSTALL_PERSISTENT_VERIFYING);
+        for (int i = 1; i <= 3; ++i) {
+            verifyRedeem(connect(installData), false, i);
+            verifyRedeem(connect(installData), true, i);
+        }
+    }
+
     /**
      * Verifies the token redemption operation for multi-party minting.
      * Redemption proves ownership of a valid token and marks it as spent.
@@ -263,7 +300,11 @@ public class AppletTest extends BaseTest {
      * @param parties Number of participating mints
      */
     public void verifyRedeem(boolean precomputed, int parties) throws Exception {
-        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        verifyRedeem(connect(), precomputed, parties);
+    }
+
+    public void verifyRedeem(CardManager cm, boolean precomputed, int parties) throws Exception {
+        ProtocolManager pm = new ProtocolManager(cm, CARD_IDX);
         BigInteger[] privateKeys = new BigInteger[parties];
         pm.setup(privateKeys);
 
@@ -374,6 +415,842 @@ public class AppletTest extends BaseTest {
         Assertions.assertTrue(pm.redeemSingle(secret, token, precomputed ? hashedPoint : null));
     }
 
+    /**
+     * Tests precomputed hash-to-curve for messages that need more than one try-and-increment iteration.
+     */
+    @Test
+    public void testPrecomputedCounter() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        BigInteger[] secrets = new BigInteger[1];
+        ECPoint mintKey = pm.setup(secrets);
+
+        for (int repeats = 1; repeats <= 4; ++repeats) {
+            byte[] secret = ProtocolManager.randomMessage(repeats);
+            ECPoint hashedPoint = ProtocolManager.h2c(secret);
+            Assertions.assertEquals(repeats - 1, ProtocolManager.h2cCounter(secret));
+            ECPoint token = pm.issue(hashedPoint);
+
+            // Swap using the precomputed point and its counter
+            ECPoint newToken = pm.swapSingle(secret, token, ProtocolManager.G, hashedPoint);
+            Assertions.assertArrayEquals(mintKey.getEncoded(false), newToken.getEncoded(false));
+
+            // Redeem another token the same way
+            secret = ProtocolManager.randomMessage(repeats);
+            hashedPoint = ProtocolManager.h2c(secret);
+            token = pm.issue(hashedPoint);
+
+            // A wrong counter hint must be rejected
+            CommandAPDU cmd = new CommandAPDU(
+                    Consts.CLA_JCMINT,
+                    Consts.INS_REDEEM_SINGLE,
+                    (byte) 1,   // Precomputed hash
+                    (byte) 0,   // Denomination 0
+                    Util.concat(Util.concat(secret, token.getEncoded(false)), hashedPoint.getEncoded(false), new byte[]{(byte) repeats})
+            );
+            ResponseAPDU responseAPDU = pm.cm.transmit(cmd);
+            Assertions.assertNotNull(responseAPDU);
+            Assertions.assertEquals(Consts.E_INVALID_PRECOMPUTE & 0xffff, responseAPDU.getSW());
+
+            Assertions.assertTrue(pm.redeemSingle(secret, token, hashedPoint));
+
+            // A later counter that also hits the curve is accepted as the hash, but the message is already spent
+            int later = repeats;
+            while (ProtocolManager.h2cAt(secret, later) == null) {
+                ++later;
+            }
+            ECPoint laterPoint = ProtocolManager.h2cAt(secret, later);
+            cmd = new CommandAPDU(
+                    Consts.CLA_JCMINT,
+                    Consts.INS_REDEEM_SINGLE,
+                    (byte) 1,   // Precomputed hash
+                    (byte) 0,   // Denomination 0
+                    Util.concat(Util.concat(secret, laterPoint.multiply(secrets[0]).getEncoded(false)),
+                            laterPoint.getEncoded(false), new byte[]{(byte) later})
+            );
+            responseAPDU = pm.cm.transmit(cmd);
+            Assertions.assertNotNull(responseAPDU);
+            Assertions.assertEquals(Consts.E_ALREADY_SPENT & 0xffff, responseAPDU.getSW());
+        }
+    }
+
+    /**
+     * Tests batch issuance with and without DLEQ proofs, including chained responses.
+     */
+    @Test
+    public void testIssueBatch() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        BigInteger[] secrets = new BigInteger[1];
+        ECPoint mintKey = pm.setup(secrets);
+
+        ECPoint[] challenges = new ECPoint[Consts.MAX_BATCH + 3];
+        for (int i = 0; i < challenges.length; ++i) {
+            challenges[i] = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        }
+
+        byte[][] signatures = pm.issueBatch(challenges, false);
+        for (int i = 0; i < challenges.length; ++i) {
+            Assertions.assertArrayEquals(challenges[i].multiply(secrets[0]).getEncoded(false), signatures[i]);
+        }
+
+        byte[][] proofs = pm.issueBatch(challenges, true);
+        for (int i = 0; i < challenges.length; ++i) {
+            Assertions.assertArrayEquals(challenges[i].multiply(secrets[0]).getEncoded(false), Arrays.copyOfRange(proofs[i], 0, 65));
+            Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenges[i], mintKey, proofs[i]));
+        }
+
+        // GET RESPONSE without a pending response is rejected
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_GET_RESPONSE, 0, 0, 256);
+        Assertions.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED & 0xffff, pm.cm.transmit(cmd).getSW());
+    }
+
+    /**
+     * Tests the atomic multi-input/multi-output swap.
+     */
+    @Test
+    public void testSwapBatch() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        BigInteger[] secrets = new BigInteger[1];
+        pm.setup(secrets);
+
+        // Cashu secrets are 64 character hex strings
+        byte[][] messages = new byte[4][];
+        ECPoint[] tokens = new ECPoint[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+            tokens[i] = pm.issue(ProtocolManager.h2c(messages[i]));
+        }
+        ECPoint[] challenges = new ECPoint[2];
+        for (int i = 0; i < challenges.length; ++i) {
+            challenges[i] = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        }
+
+        // More outputs than inputs are rejected
+        CommandAPDU cmd = ProtocolManager.swapBatchCommand(Arrays.copyOf(messages, 1), Arrays.copyOf(tokens, 1), challenges);
+        Assertions.assertEquals(Consts.E_UNBALANCED & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // A duplicate input is rejected and nothing is spent
+        byte[][] duplicate = {messages[0], messages[1], messages[0]};
+        cmd = ProtocolManager.swapBatchCommand(duplicate, new ECPoint[]{tokens[0], tokens[1], tokens[0]}, challenges);
+        Assertions.assertEquals(Consts.E_ALREADY_SPENT & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // An invalid token is rejected and nothing is spent
+        cmd = ProtocolManager.swapBatchCommand(Arrays.copyOf(messages, 2), new ECPoint[]{tokens[0], tokens[0]}, challenges);
+        Assertions.assertEquals(Consts.E_VERIFICATION_FAILED_TOKEN & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        ECPoint[] newTokens = pm.swapBatch(Arrays.copyOf(messages, 3), Arrays.copyOf(tokens, 3), challenges);
+        for (int i = 0; i < challenges.length; ++i) {
+            Assertions.assertArrayEquals(challenges[i].multiply(secrets[0]).getEncoded(false), newTokens[i].getEncoded(false));
+        }
+
+        // All inputs are spent now, the remaining token is still valid
+        for (int i = 0; i < 3; ++i) {
+            cmd = ProtocolManager.swapBatchCommand(new byte[][]{messages[i]}, new ECPoint[]{tokens[i]}, new ECPoint[0]);
+            Assertions.assertEquals(Consts.E_ALREADY_SPENT & 0xffff, pm.cm.transmit(cmd).getSW());
+        }
+        pm.swapBatch(new byte[][]{messages[3]}, new ECPoint[]{tokens[3]}, new ECPoint[0]);
+    }
+
+    /**
+     * Tests single and batched swaps returning a NUT-12 DLEQ proof with every new token.
+     */
+    @Test
+    public void testSwapDLEQ() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        ECPoint mintKey = pm.setup(new BigInteger[1]);
+
+        byte[][] messages = new byte[5][];
+        ECPoint[] tokens = new ECPoint[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+            tokens[i] = pm.issue(ProtocolManager.h2c(messages[i]));
+        }
+
+        // Single swap, with and without a precomputed hash
+        byte[] secret = ProtocolManager.randomMessage(false);
+        ECPoint hashedPoint = ProtocolManager.h2c(secret);
+        ECPoint challenge = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        byte[] proof = pm.swapSingleDLEQ(secret, pm.issue(hashedPoint), challenge, hashedPoint);
+        Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenge, mintKey, proof));
+        proof = pm.swapSingleDLEQ(messages[0], tokens[0], challenge, null);
+        Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenge, mintKey, proof));
+
+        // Batch swap, its response does not fit a single short APDU
+        ECPoint[] challenges = new ECPoint[messages.length - 1];
+        for (int i = 0; i < challenges.length; ++i) {
+            challenges[i] = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        }
+        byte[][] inputs = Arrays.copyOfRange(messages, 1, messages.length);
+        byte[][] proofs = pm.swapBatchDLEQ(inputs, Arrays.copyOfRange(tokens, 1, tokens.length), challenges);
+        for (int i = 0; i < challenges.length; ++i) {
+            Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenges[i], mintKey, proofs[i]));
+        }
+
+        // All inputs are spent
+        for (int i = 0; i < messages.length; ++i) {
+            CommandAPDU cmd = ProtocolManager.swapBatchCommand(new byte[][]{messages[i]}, new ECPoint[]{tokens[i]}, new ECPoint[0]);
+            Assertions.assertEquals(Consts.E_ALREADY_SPENT & 0xffff, pm.cm.transmit(cmd).getSW());
+        }
+
+        // A full batch of 64-character secrets with amounts and uncompressed points
+        messages = new byte[Consts.MAX_BATCH][];
+        tokens = new ECPoint[messages.length];
+        challenges = new ECPoint[messages.length];
+        int[] amounts = new int[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+            tokens[i] = pm.issue(ProtocolManager.h2c(messages[i]));
+            challenges[i] = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        }
+        proofs = pm.swapBatchDLEQ(messages, tokens, amounts, challenges, amounts);
+        for (int i = 0; i < challenges.length; ++i) {
+            Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenges[i], mintKey, proofs[i]));
+        }
+    }
+
+    /**
+     * Tests the derived keysets of power-of-two amounts: published keys, issuance and value-balanced swaps.
+     */
+    @Test
+    public void testAmounts() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        BigInteger[] secrets = new BigInteger[1];
+        ECPoint mintKey = pm.setup(secrets);
+
+        // Every amount has its own key derived from the master secret, amount 0 keeps the setup key
+        Assertions.assertEquals(mintKey, pm.keys(0, false));
+        for (int amount : new int[]{1, 2, 5, Consts.MAX_AMOUNTS - 1}) {
+            ECPoint key = ProtocolManager.G.multiply(ProtocolManager.deriveSecret(secrets[0], amount));
+            Assertions.assertEquals(key, pm.keys(amount, false));
+        }
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_KEYS, 0, Consts.MAX_AMOUNTS, 65);
+        Assertions.assertEquals(Consts.E_INVALID_KEYSET & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // Issue a 4 and a 1 under their own keys, switching amounts between commands
+        byte[][] messages = new byte[2][];
+        int[] amounts = {2, 0};
+        ECPoint[] tokens = new ECPoint[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+            ECPoint hashedPoint = ProtocolManager.h2c(messages[i]);
+            byte[] proof = pm.issueBatch(new ECPoint[]{hashedPoint}, true, amounts[i])[0];
+            Assertions.assertTrue(ProtocolManager.verifyIssueProof(hashedPoint, pm.keys(amounts[i], false), proof));
+            tokens[i] = ProtocolManager.G.getCurve().decodePoint(Arrays.copyOfRange(proof, 0, 65));
+            Assertions.assertEquals(hashedPoint.multiply(ProtocolManager.deriveSecret(secrets[0], amounts[i])), tokens[i]);
+        }
+
+        ECPoint[] challenges = new ECPoint[3];
+        for (int i = 0; i < challenges.length; ++i) {
+            challenges[i] = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        }
+
+        // Outputs worth more than the inputs are rejected
+        cmd = ProtocolManager.swapBatchCommand(messages, tokens, amounts, challenges, new int[]{2, 1, 0}, true, false);
+        Assertions.assertEquals(Consts.E_UNBALANCED & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // A token claimed at another amount is rejected
+        cmd = ProtocolManager.swapBatchCommand(messages, tokens, new int[]{3, 0}, challenges, new int[]{1, 1, 0}, true, false);
+        Assertions.assertEquals(Consts.E_VERIFICATION_FAILED_TOKEN & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // Swap 4 + 1 for 2 + 2 + 1
+        int[] outputAmounts = {1, 1, 0};
+        byte[][] proofs = pm.swapBatchDLEQ(messages, tokens, amounts, challenges, outputAmounts);
+        for (int i = 0; i < challenges.length; ++i) {
+            Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenges[i], pm.keys(outputAmounts[i], false), proofs[i]));
+        }
+
+        // All amounts share the ledger of the keyset
+        for (int i = 0; i < messages.length; ++i) {
+            cmd = ProtocolManager.swapBatchCommand(new byte[][]{messages[i]}, new ECPoint[]{tokens[i]}, new int[]{amounts[i]},
+                    new ECPoint[0], new int[0], false, false);
+            Assertions.assertEquals(Consts.E_ALREADY_SPENT & 0xffff, pm.cm.transmit(cmd).getSW());
+        }
+
+        // The card cannot verify the other parties' keys of derived amounts, with or without a threshold
+        pm.setup(new BigInteger[2]);
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_KEYS, 0, 1, 65);
+        Assertions.assertEquals(Consts.E_SINGLE_PARTY_AMOUNT & 0xffff, pm.cm.transmit(cmd).getSW());
+        mintKey = pm.setup(new BigInteger[3], 2);
+        Assertions.assertEquals(Consts.E_SINGLE_PARTY_AMOUNT & 0xffff, pm.cm.transmit(cmd).getSW());
+        Assertions.assertEquals(mintKey, pm.keys(0, false));
+    }
+
+    /**
+     * Tests the compressed point format across the single-party and multi-party commands.
+     */
+    @Test
+    public void testCompressedPoints() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        ECPoint mintKey = pm.setup(new BigInteger[1]);
+        pm.setCompressed(true);
+
+        // Issue, with and without DLEQ proofs
+        ECPoint challenge = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenge, mintKey, pm.issueSingleDLEQ(challenge)));
+        byte[][] proofs = pm.issueBatch(new ECPoint[]{challenge, challenge.negate()}, true);
+        Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenge.negate(), mintKey, proofs[1]));
+
+        // Single swap and redeem; the precomputed hash stays uncompressed
+        byte[] secret = ProtocolManager.randomMessage(false);
+        ECPoint hashedPoint = ProtocolManager.h2c(secret);
+        ECPoint token = pm.issue(hashedPoint);
+        ECPoint newToken = pm.swapSingle(secret, token, challenge, hashedPoint);
+        byte[] nextSecret = ProtocolManager.randomMessage(false);
+        Assertions.assertTrue(pm.redeemSingle(nextSecret, pm.issue(ProtocolManager.h2c(nextSecret)), null));
+
+        // Batch swap and redeem
+        byte[][] messages = new byte[3][];
+        ECPoint[] tokens = new ECPoint[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+            tokens[i] = pm.issue(ProtocolManager.h2c(messages[i]));
+        }
+        ECPoint[] newTokens = pm.swapBatch(Arrays.copyOf(messages, 2), Arrays.copyOf(tokens, 2), new ECPoint[]{challenge, challenge});
+        Assertions.assertArrayEquals(newToken.getEncoded(false), newTokens[1].getEncoded(false));
+        Assertions.assertArrayEquals(new boolean[]{false, true}, pm.redeemBatch(
+                new byte[][]{messages[0], messages[2]}, new ECPoint[]{tokens[0], tokens[2]}, null));
+
+        // An x coordinate without a point on the curve is rejected
+        byte[] invalid = Util.concat(new byte[]{0x02}, new byte[32]);
+        invalid[32] = 7;
+        while (true) {
+            try {
+                ProtocolManager.G.getCurve().decodePoint(invalid);
+                invalid[32]++;
+            } catch (IllegalArgumentException e) {
+                break;
+            }
+        }
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_ISSUE, 0, 0, invalid);
+        Assertions.assertNotEquals(ISO7816.SW_NO_ERROR & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // Multi-party swap and redeem with both proof forms
+        int parties = Consts.MAX_PARTIES;
+        BigInteger[] privateKeys = new BigInteger[parties];
+        pm.setup(privateKeys);
+        ECPoint[] partialKeys = new ECPoint[parties];
+        for (int i = 0; i < parties; ++i) {
+            partialKeys[i] = ProtocolManager.G.multiply(privateKeys[i]);
+        }
+        for (int batch = 0; batch < 2; ++batch) {
+            for (int swap = 0; swap < 2; ++swap) {
+                secret = ProtocolManager.randomMessage(false);
+                hashedPoint = ProtocolManager.h2c(secret);
+                token = pm.issue(hashedPoint);
+                for (int i = 0; i < parties; ++i) {
+                    if (i != CARD_IDX) {
+                        token = token.add(hashedPoint.multiply(privateKeys[i]));
+                    }
+                }
+
+                byte[] partyProofs = pm.verify(secret, token, null);
+                for (int i = 0; i < parties; ++i) {
+                    if (i != CARD_IDX) {
+                        partyProofs = Util.concat(partyProofs, ProtocolManager.computeProof(privateKeys[i], hashedPoint));
+                    }
+                }
+                if (batch == 1) {
+                    partyProofs = ProtocolManager.batchProofs(hashedPoint, partialKeys, partyProofs);
+                }
+                if (swap == 1) {
+                    newToken = pm.swap(secret, token, challenge, partyProofs, batch == 1);
+                    Assertions.assertArrayEquals(challenge.multiply(privateKeys[CARD_IDX]).getEncoded(false), newToken.getEncoded(false));
+                } else {
+                    Assertions.assertTrue(pm.redeem(secret, token, partyProofs, batch == 1));
+                }
+            }
+        }
+
+        // The format is a session setting
+        CommandAPDU select = new CommandAPDU(0x00, ISO7816.INS_SELECT, 0x04, 0x00, APPLET_AID_BYTE);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, pm.cm.transmit(select).getSW());
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_ISSUE, 0, 0, challenge.getEncoded(false));
+        Assertions.assertEquals(65, pm.cm.transmit(cmd).getData().length);
+    }
+
+    /**
+     * Tests batch redeem with a per-item status.
+     */
+    @Test
+    public void testRedeemBatch() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        pm.setup(new BigInteger[1]);
+
+        byte[][] messages = new byte[6][];
+        ECPoint[] tokens = new ECPoint[messages.length];
+        ECPoint[] precomputed = new ECPoint[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+            tokens[i] = pm.issue(ProtocolManager.h2c(messages[i]));
+        }
+        // A 32 byte message with a precomputed hash
+        messages[1] = ProtocolManager.randomMessage(true);
+        precomputed[1] = ProtocolManager.h2c(messages[1]);
+        tokens[1] = pm.issue(precomputed[1]);
+        // An already spent token
+        Assertions.assertArrayEquals(new boolean[]{true}, pm.redeemBatch(new byte[][]{messages[2]}, new ECPoint[]{tokens[2]}, null));
+        // An invalid token
+        tokens[3] = tokens[0];
+        // A duplicate within the batch
+        messages[4] = messages[0];
+        tokens[4] = tokens[0];
+
+        boolean[] expected = {true, true, false, false, false, true};
+        Assertions.assertArrayEquals(expected, pm.redeemBatch(messages, tokens, precomputed));
+        Assertions.assertArrayEquals(new boolean[messages.length], pm.redeemBatch(messages, tokens, precomputed));
+    }
+
+    /**
+     * Tests redeeming a batch several times larger than the card's buffer through chained commands.
+     */
+    @Test
+    public void testRedeemStream() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        pm.setup(new BigInteger[1]);
+
+        byte[][] messages = new byte[40][];
+        ECPoint[] tokens = new ECPoint[messages.length];
+        ECPoint[] precomputed = new ECPoint[messages.length];
+        boolean[] expected = new boolean[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+            tokens[i] = pm.issue(ProtocolManager.h2c(messages[i]));
+            expected[i] = true;
+        }
+        // Precomputed hashes
+        for (int i = 3; i < messages.length; i += 10) {
+            precomputed[i] = ProtocolManager.h2c(messages[i]);
+        }
+        // An already spent token
+        Assertions.assertArrayEquals(new boolean[]{true}, pm.redeemBatch(new byte[][]{messages[7]}, new ECPoint[]{tokens[7]}, null));
+        expected[7] = false;
+        // An invalid token
+        tokens[15] = tokens[14];
+        expected[15] = false;
+        // A duplicate of an item redeemed by an earlier command of the chain
+        messages[38] = messages[1];
+        tokens[38] = tokens[1];
+        expected[38] = false;
+
+        Assertions.assertArrayEquals(expected, pm.redeemStream(messages, tokens, precomputed, 200));
+        Assertions.assertArrayEquals(new boolean[messages.length], pm.redeemStream(messages, tokens, precomputed, 1000));
+
+        // A chain that ends within an item is rejected
+        byte[] message = Hex.toHexString(ProtocolManager.randomMessage(false)).getBytes(StandardCharsets.UTF_8);
+        byte[] item = Util.concat(new byte[]{(byte) message.length}, message, pm.issue(ProtocolManager.h2c(message)).getEncoded(false));
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT | Consts.CLA_CHAINING, Consts.INS_REDEEM_BATCH, 0, 0,
+                Arrays.copyOfRange(item, 0, 50));
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, pm.cm.transmit(cmd).getSW());
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_REDEEM_BATCH, 0, 0, Arrays.copyOfRange(item, 50, 100));
+        Assertions.assertEquals(ISO7816.SW_WRONG_LENGTH & 0xffff, pm.cm.transmit(cmd).getSW());
+    }
+
+    /**
+     * Tests that a verification context does not survive reselecting the applet.
+     */
+    @Test
+    public void testVerifySession() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        BigInteger[] privateKeys = new BigInteger[2];
+        pm.setup(privateKeys);
+
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            byte[] secret = ProtocolManager.randomMessage(false);
+            ECPoint hashedPoint = ProtocolManager.h2c(secret);
+            ECPoint token = pm.issue(hashedPoint).add(hashedPoint.multiply(privateKeys[1]));
+            byte[] proofs = Util.concat(pm.verify(secret, token, null), ProtocolManager.computeProof(privateKeys[1], hashedPoint));
+
+            if (attempt == 0) {
+                // A new session drops the verification context
+                CommandAPDU select = new CommandAPDU(0x00, ISO7816.INS_SELECT, 0x04, 0x00, APPLET_AID_BYTE);
+                Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, pm.cm.transmit(select).getSW());
+
+                CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_REDEEM, 0, 0,
+                        Util.concat(secret, token.getEncoded(false), proofs));
+                Assertions.assertEquals(Consts.E_NOT_VERIFYING & 0xffff, pm.cm.transmit(cmd).getSW());
+            } else {
+                Assertions.assertTrue(pm.redeem(secret, token, proofs));
+            }
+        }
+    }
+
+    /**
+     * Tests that the RAM copies of the keyset are refilled when the applet is reselected.
+     */
+    @Test
+    public void testReselect() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        CommandAPDU select = new CommandAPDU(0x00, ISO7816.INS_SELECT, 0x04, 0x00, APPLET_AID_BYTE);
+
+        // Proofs depend on the secret and the partial keys, read from RAM or from EEPROM by federation size
+        for (int parties : new int[]{2, Consts.CACHED_PARTIES + 1}) {
+            BigInteger[] privateKeys = new BigInteger[parties];
+            pm.setup(privateKeys);
+            Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, pm.cm.transmit(select).getSW());
+
+            byte[] secret = ProtocolManager.randomMessage(false);
+            ECPoint hashedPoint = ProtocolManager.h2c(secret);
+            ECPoint token = pm.issue(hashedPoint);
+            for (int i = 1; i < parties; ++i) {
+                token = token.add(hashedPoint.multiply(privateKeys[i]));
+            }
+            byte[] proofs = pm.verify(secret, token, null);
+            for (int i = 1; i < parties; ++i) {
+                proofs = Util.concat(proofs, ProtocolManager.computeProof(privateKeys[i], hashedPoint));
+            }
+            Assertions.assertTrue(pm.redeem(secret, token, proofs));
+        }
+
+        // Single-party DLEQ proofs of a rotated keyset as well
+        pm.setup(new BigInteger[1]);
+        ECPoint mintKey = pm.rotate(new BigInteger[1]);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, pm.cm.transmit(select).getSW());
+        ECPoint challenge = ProtocolManager.h2c(ProtocolManager.randomMessage(false));
+        Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenge, mintKey, pm.issueSingleDLEQ(challenge)));
+    }
+
+    /**
+     * Tests that the warm-up command works before and after setup and leaves the protocol state alone.
+     */
+    @Test
+    public void testWarmup() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        pm.warmup();
+
+        BigInteger[] privateKeys = new BigInteger[2];
+        pm.setup(privateKeys);
+        Assertions.assertEquals(2, pm.precompute(2));
+
+        // A pending verification context survives the warm-up
+        byte[] secret = ProtocolManager.randomMessage(false);
+        ECPoint hashedPoint = ProtocolManager.h2c(secret);
+        ECPoint token = pm.issue(hashedPoint).add(hashedPoint.multiply(privateKeys[1]));
+        byte[] proofs = Util.concat(pm.verify(secret, token, null), ProtocolManager.computeProof(privateKeys[1], hashedPoint));
+        pm.warmup();
+        Assertions.assertTrue(pm.redeem(secret, token, proofs));
+
+        // The verification above took one pair, the warm-up none
+        Assertions.assertEquals(1, pm.precompute(0));
+    }
+
+    /**
+     * Tests batch verification of the other parties' proofs and that an invalid proof is attributed to its party.
+     */
+    @Test
+    public void testBatchProofs() throws Exception {
+        verifyBatchProofs(this::connect);
+    }
+
+    public void verifyBatchProofs(Callable<CardManager> connect) throws Exception {
+        for (int parties = 2; parties <= Consts.PROOFS_PER_COMMAND; ++parties) {
+            ProtocolManager pm = new ProtocolManager(connect.call(), CARD_IDX);
+            BigInteger[] privateKeys = new BigInteger[parties];
+            pm.setup(privateKeys);
+            ECPoint[] partialKeys = new ECPoint[parties];
+            for (int i = 0; i < parties; ++i) {
+                partialKeys[i] = ProtocolManager.G.multiply(privateKeys[i]);
+            }
+
+            for (int swap = 0; swap < 2; ++swap) {
+                byte[] secret = ProtocolManager.randomMessage(false);
+                ECPoint hashedPoint = ProtocolManager.h2c(secret);
+                ECPoint token = pm.issue(hashedPoint);
+                for (int i = 0; i < parties; ++i) {
+                    if (i != CARD_IDX) {
+                        token = token.add(hashedPoint.multiply(privateKeys[i]));
+                    }
+                }
+
+                byte[] proofs = pm.verify(secret, token, null);
+                for (int i = 0; i < parties; ++i) {
+                    if (i != CARD_IDX) {
+                        proofs = Util.concat(proofs, ProtocolManager.computeProof(privateKeys[i], hashedPoint));
+                    }
+                }
+                proofs = ProtocolManager.batchProofs(hashedPoint, partialKeys, proofs);
+
+                // A wrong response of the last party is reported with its index
+                byte[] invalid = Arrays.copyOf(proofs, proofs.length);
+                invalid[invalid.length - 1] ^= 1;
+                byte[] data = Util.concat(secret, token.getEncoded(false), invalid);
+                if (swap == 1) {
+                    data = Util.concat(secret, token.getEncoded(false), Util.concat(ProtocolManager.G.getEncoded(false), invalid));
+                }
+                CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, swap == 1 ? Consts.INS_SWAP : Consts.INS_REDEEM,
+                        Consts.P1_BATCH_PROOFS, 0, data);
+                Assertions.assertEquals((Consts.E_VERIFICATION_FAILED_PARTY | (parties - 1)) & 0xffff, pm.cm.transmit(cmd).getSW());
+
+                // The valid proofs still pass
+                if (swap == 1) {
+                    ECPoint challenge = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+                    ECPoint newToken = pm.swap(secret, token, challenge, proofs, true);
+                    Assertions.assertArrayEquals(challenge.multiply(privateKeys[CARD_IDX]).getEncoded(false), newToken.getEncoded(false));
+                } else {
+                    Assertions.assertTrue(pm.redeem(secret, token, proofs, true));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests a federation of MAX_PARTIES whose proofs are submitted in chunks and summed on the card.
+     */
+    @Test
+    public void testChunkedProofs() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        int parties = Consts.MAX_PARTIES;
+        BigInteger[] privateKeys = new BigInteger[parties];
+        pm.setup(privateKeys);
+        ECPoint[] partialKeys = new ECPoint[parties];
+        for (int i = 0; i < parties; ++i) {
+            partialKeys[i] = ProtocolManager.G.multiply(privateKeys[i]);
+        }
+
+        for (int batch = 0; batch < 2; ++batch) {
+            byte[] secret = ProtocolManager.randomMessage(false);
+            ECPoint hashedPoint = ProtocolManager.h2c(secret);
+            ECPoint token = pm.issue(hashedPoint);
+            for (int i = 0; i < parties; ++i) {
+                if (i != CARD_IDX) {
+                    token = token.add(hashedPoint.multiply(privateKeys[i]));
+                }
+            }
+            byte[] proofs = pm.verify(secret, token, null);
+            for (int i = 0; i < parties; ++i) {
+                if (i != CARD_IDX) {
+                    proofs = Util.concat(proofs, ProtocolManager.computeProof(privateKeys[i], hashedPoint));
+                }
+            }
+            if (batch == 1) {
+                proofs = ProtocolManager.batchProofs(hashedPoint, partialKeys, proofs);
+            }
+            int proofLength = proofs.length / parties;
+            byte p1 = batch == 1 ? Consts.P1_BATCH_PROOFS : 0;
+
+            // A swap before every proof has arrived is rejected
+            CommandAPDU swap = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_SWAP, p1, 0,
+                    Util.concat(secret, token.getEncoded(false), ProtocolManager.G.getEncoded(false)));
+            Assertions.assertEquals(Consts.E_MISSING_PROOFS & 0xffff, pm.cm.transmit(swap).getSW());
+
+            // An invalid proof is reported with the index of its party and leaves the sum unchanged
+            byte[] invalid = Arrays.copyOfRange(proofs, proofs.length - proofLength, proofs.length);
+            invalid[invalid.length - 1] ^= 1;
+            CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_PROOFS, p1, 0,
+                    Util.concat(new byte[]{(byte) (parties - 1)}, invalid));
+            Assertions.assertEquals((batch == 1 ? Consts.E_VERIFICATION_FAILED_PARTY | (parties - 1) : Consts.E_VERIFICATION_FAILED_PROOF) & 0xffff,
+                    pm.cm.transmit(cmd).getSW());
+
+            Assertions.assertEquals(0xffff, pm.submitProofs(proofs, batch == 1, 3));
+
+            // A proof cannot be added twice
+            cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_PROOFS, p1, 0,
+                    Util.concat(new byte[]{(byte) (parties - 1)}, Arrays.copyOfRange(proofs, proofs.length - proofLength, proofs.length)));
+            Assertions.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED & 0xffff, pm.cm.transmit(cmd).getSW());
+
+            ECPoint challenge = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+            ECPoint newToken = pm.swap(secret, token, challenge, new byte[0], batch == 1);
+            Assertions.assertArrayEquals(challenge.multiply(privateKeys[CARD_IDX]).getEncoded(false), newToken.getEncoded(false));
+        }
+    }
+
+    /**
+     * Tests a 3-of-5 mint that issues, swaps and redeems with any three parties, including the fastest ones.
+     */
+    @Test
+    public void testThreshold() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        int parties = 5;
+        int threshold = 3;
+        BigInteger[] shares = new BigInteger[parties];
+        pm.setup(shares, threshold);
+
+        // Any three parties issue the same token
+        byte[] secret = ProtocolManager.randomMessage(false);
+        ECPoint hashedPoint = ProtocolManager.h2c(secret);
+        ECPoint[] partials = new ECPoint[parties];
+        partials[CARD_IDX] = pm.issue(hashedPoint);
+        for (int i = 0; i < parties; ++i) {
+            if (i != CARD_IDX) {
+                partials[i] = hashedPoint.multiply(shares[i]);
+            }
+        }
+        ECPoint token = ProtocolManager.combine(partials, 0b00111);
+        Assertions.assertArrayEquals(token.getEncoded(false), ProtocolManager.combine(partials, 0b11001).getEncoded(false));
+
+        // Swap with the fastest parties: party 2 answers only once the signers are chosen and party 4 is offline
+        CountDownLatch slowParty = new CountDownLatch(1);
+        List<Callable<byte[]>> others = new ArrayList<>();
+        for (int i = 0; i < parties; ++i) {
+            BigInteger share = shares[i];
+            ECPoint point = hashedPoint;
+            int party = i;
+            others.add(() -> {
+                if (party == 2) {
+                    slowParty.await();
+                } else if (party == 4) {
+                    throw new IllegalStateException("Party is offline");
+                }
+                return ProtocolManager.computeProof(share, point);
+            });
+        }
+        ProtocolManager.SignerProofs signerProofs = pm.fastestProofs(pm.verify(secret, token, null), others);
+        slowParty.countDown();
+        Assertions.assertEquals(0b01011, signerProofs.signers);
+
+        // Signers must include this card and reach the threshold
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_REDEEM, 0, 0,
+                Util.concat(secret, token.getEncoded(false), new byte[]{0, 0b00110}));
+        Assertions.assertEquals(Consts.E_INVALID_SIGNERS & 0xffff, pm.cm.transmit(cmd).getSW());
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_REDEEM, 0, 0,
+                Util.concat(secret, token.getEncoded(false), new byte[]{0, 0b00011}));
+        Assertions.assertEquals(Consts.E_INVALID_SIGNERS & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        ECPoint challenge = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        ECPoint newToken = pm.swap(secret, token, challenge, signerProofs.proofs, false, signerProofs.signers);
+        Assertions.assertArrayEquals(challenge.multiply(shares[CARD_IDX]).getEncoded(false), newToken.getEncoded(false));
+
+        // Redeem with other signers, their proofs submitted one by one and checked as a batch
+        secret = ProtocolManager.randomMessage(false);
+        hashedPoint = ProtocolManager.h2c(secret);
+        token = hashedPoint.multiply(ProtocolManager.lagrange(CARD_IDX, 0b10101).multiply(shares[CARD_IDX])
+                .add(ProtocolManager.lagrange(2, 0b10101).multiply(shares[2]))
+                .add(ProtocolManager.lagrange(4, 0b10101).multiply(shares[4])));
+        byte[] proofs = Util.concat(pm.verify(secret, token, null), ProtocolManager.computeProof(shares[2], hashedPoint),
+                ProtocolManager.computeProof(shares[4], hashedPoint));
+        proofs = ProtocolManager.batchProofs(hashedPoint, new ECPoint[]{ProtocolManager.G.multiply(shares[CARD_IDX]),
+                ProtocolManager.G.multiply(shares[2]), ProtocolManager.G.multiply(shares[4])}, proofs);
+        Assertions.assertEquals(0b10101, pm.submitProofs(proofs, true, 1, 0b10101));
+
+        // The signers are fixed by the first proofs
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_REDEEM, Consts.P1_BATCH_PROOFS, 0,
+                Util.concat(secret, token.getEncoded(false), new byte[]{0, 0b01101}));
+        Assertions.assertEquals(Consts.E_INVALID_SIGNERS & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        Assertions.assertTrue(pm.redeem(secret, token, new byte[0], true, 0b10101));
+    }
+
+    /**
+     * Tests that a 3-of-5 mint signs with any three parties after a rotation deals fresh shares.
+     */
+    @Test
+    public void testThresholdRotate() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        int parties = 5;
+        BigInteger[] shares = new BigInteger[parties];
+        pm.setup(shares, 3);
+        ECPoint mintKey = pm.rotate(shares);
+        Assertions.assertArrayEquals(mintKey.getEncoded(false), pm.keys(0, false).getEncoded(false));
+
+        byte[] secret = ProtocolManager.randomMessage(false);
+        ECPoint hashedPoint = ProtocolManager.h2c(secret);
+        ECPoint[] partials = new ECPoint[parties];
+        partials[CARD_IDX] = pm.issue(hashedPoint);
+        for (int i = 0; i < parties; ++i) {
+            if (i != CARD_IDX) {
+                partials[i] = hashedPoint.multiply(shares[i]);
+            }
+        }
+        ECPoint token = ProtocolManager.combine(partials, 0b00111);
+        Assertions.assertArrayEquals(token.getEncoded(false), ProtocolManager.combine(partials, 0b10101).getEncoded(false));
+
+        byte[] proofs = Util.concat(pm.verify(secret, token, null), ProtocolManager.computeProof(shares[2], hashedPoint),
+                ProtocolManager.computeProof(shares[4], hashedPoint));
+        Assertions.assertTrue(pm.redeem(secret, token, proofs, false, 0b10101));
+
+        // Public keys that are not shares of one secret are rejected, and the keyset stays as it was
+        byte[] data = ProtocolManager.encodeBigInteger(shares[CARD_IDX]);
+        for (int i = 0; i < parties; ++i) {
+            BigInteger share = i == parties - 1 ? shares[i].add(BigInteger.ONE) : shares[i];
+            data = Util.concat(data, ProtocolManager.G.multiply(share).getEncoded(false));
+        }
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_ROTATE, 0, 0, data);
+        Assertions.assertEquals(Consts.E_INVALID_SHARES & 0xffff, pm.cm.transmit(cmd).getSW());
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_SETUP, CARD_IDX, parties, Util.concat(data, new byte[]{3}));
+        Assertions.assertEquals(Consts.E_INVALID_SHARES & 0xffff, pm.cm.transmit(cmd).getSW());
+        Assertions.assertEquals(mintKey, pm.keys(0, false));
+    }
+
+    /**
+     * Tests that proofs drawn from the precomputed nonce pool are valid and the pool drains and refills.
+     */
+    @Test
+    public void testNoncePool() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        BigInteger[] secrets = new BigInteger[1];
+        ECPoint mintKey = pm.setup(secrets);
+
+        Assertions.assertEquals(0, pm.precompute(0));
+        Assertions.assertEquals(3, pm.precompute(3));
+
+        // Pooled and inline nonces both produce valid proofs
+        for (int i = 3; i >= -1; --i) {
+            ECPoint challenge = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+            byte[] proof = pm.issueSingleDLEQ(challenge);
+            Assertions.assertTrue(ProtocolManager.verifyIssueProof(challenge, mintKey, proof));
+            Assertions.assertEquals(Math.max(i - 1, 0), pm.precompute(0));
+        }
+
+        // The pool never grows beyond its capacity
+        Assertions.assertEquals(Consts.NONCE_POOL_SIZE, pm.precompute(Consts.NONCE_POOL_SIZE + 1));
+        Assertions.assertEquals(Consts.NONCE_POOL_SIZE, pm.precompute(1));
+
+        // Multi-party verification draws from the same pool
+        BigInteger[] privateKeys = new BigInteger[2];
+        pm.setup(privateKeys);
+        byte[] secret = ProtocolManager.randomMessage(false);
+        ECPoint hashedPoint = ProtocolManager.h2c(secret);
+        ECPoint token = pm.issue(hashedPoint).add(hashedPoint.multiply(privateKeys[1]));
+        byte[] proofs = Util.concat(pm.verify(secret, token, null), ProtocolManager.computeProof(privateKeys[1], hashedPoint));
+        Assertions.assertTrue(pm.redeem(secret, token, proofs));
+        Assertions.assertEquals(Consts.NONCE_POOL_SIZE - 1, pm.precompute(0));
+    }
+
+    /**
+     * Tests keyset rotation: tokens of the retiring keyset stay spendable until the next rotation.
+     */
+    @Test
+    public void testRotate() throws Exception {
+        ProtocolManager pm = new ProtocolManager(connect(), CARD_IDX);
+        pm.setup(new BigInteger[1]);
+
+        // Issue two tokens under the first keyset
+        byte[] oldSecret = ProtocolManager.randomMessage(true);
+        ECPoint oldToken = pm.issue(ProtocolManager.h2c(oldSecret));
+        byte[] droppedSecret = ProtocolManager.randomMessage(true);
+        ECPoint droppedToken = pm.issue(ProtocolManager.h2c(droppedSecret));
+
+        ECPoint mintKey = pm.rotate(new BigInteger[1]);
+
+        // Tokens of the retiring keyset are not valid under the active one
+        byte[] data = Util.concat(oldSecret, oldToken.getEncoded(false));
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_REDEEM_SINGLE, (byte) 0, (byte) 0, data);
+        Assertions.assertEquals(Consts.E_VERIFICATION_FAILED_TOKEN & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // Swap a retiring token for a token of the active keyset
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_SWAP_SINGLE, (byte) 0, Consts.P2_RETIRING,
+                Util.concat(data, ProtocolManager.G.getEncoded(false)));
+        ResponseAPDU responseAPDU = pm.cm.transmit(cmd);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+        Assertions.assertArrayEquals(mintKey.getEncoded(false), responseAPDU.getData());
+
+        // The retiring keyset keeps its own ledger
+        Assertions.assertEquals(Consts.E_ALREADY_SPENT & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // Tokens of the active keyset work as before
+        byte[] newSecret = ProtocolManager.randomMessage(true);
+        ECPoint newToken = pm.issue(ProtocolManager.h2c(newSecret));
+        Assertions.assertTrue(pm.redeemSingle(newSecret, newToken, null));
+
+        // A second rotation drops the first keyset
+        pm.rotate(new BigInteger[1]);
+        cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_REDEEM_SINGLE, (byte) 0, Consts.P2_RETIRING,
+                Util.concat(droppedSecret, droppedToken.getEncoded(false)));
+        Assertions.assertEquals(Consts.E_VERIFICATION_FAILED_TOKEN & 0xffff, pm.cm.transmit(cmd).getSW());
+
+        // A fresh setup leaves no retiring keyset
+        pm.setup(new BigInteger[1]);
+        Assertions.assertEquals(Consts.E_INVALID_KEYSET & 0xffff, pm.cm.transmit(cmd).getSW());
+    }
+
     /**
      * Verifies token issue with DLEQ for single-party (non-federated) scenarios.
      */
@@ -1,6 +1,7 @@
 package tests;
 
 import jcmint.JCMint;
+import jcmint.jcmathlib.OperationSupport;
 import cz.muni.fi.crocs.rcard.client.CardManager;
 import cz.muni.fi.crocs.rcard.client.CardType;
 import cz.muni.fi.crocs.rcard.client.RunConfig;
@@ -22,7 +23,7 @@ import java.util.ArrayList;
  */
 public class BaseTest {
     private static String APPLET_AID = "6a636d696e74617070";
-    private static byte APPLET_AID_BYTE[] = Util.hexStringToByteArray(APPLET_AID);
+    protected static byte APPLET_AID_BYTE[] = Util.hexStringToByteArray(APPLET_AID);
 
     protected CardType cardType = CardType.JCARDSIMLOCAL;
 
@@ -54,6 +55,17 @@ public class BaseTest {
         return connectRaw(installData);
     }
 
+    /**
+     * Builds the install parameters [Li][AID][Lc][control_info][La][max_parties][flags] of the applet.
+     *
+     * @param maxParties Largest federation to size the partial key tables for
+     * @param flags Consts.INSTALL_* flags
+     */
+    public static byte[] installData(byte maxParties, byte flags) {
+        return Util.concat(Util.concat(new byte[]{(byte) APPLET_AID_BYTE.length}, APPLET_AID_BYTE),
+                new byte[]{0, 2, maxParties, flags});
+    }
+
     public CardManager connectRaw(byte[] installData) throws Exception {
         final CardManager cardMngr = new CardManager(true, APPLET_AID_BYTE);
         final RunConfig runCfg = RunConfig.getDefaultConfig();
@@ -95,6 +107,27 @@ public class BaseTest {
         return cardMngr;
     }
 
+    /**
+     * Connects to a simulated card that adds points in software like cards without EC_HW_ADD, a path the simulator
+     * profile never takes. The profile is shared with the applet, so it is changed between install and the deferred
+     * initialization. Call restoreProfile when done.
+     */
+    public CardManager connectSoftwareAdd() throws Exception {
+        OperationSupport support = OperationSupport.getInstance();
+        support.DEFERRED_INITIALIZATION = true;
+        CardManager cardMngr = connect();
+        support.EC_HW_ADD = false;  // Enabled again by the profile at install
+        return cardMngr;
+    }
+
+    /**
+     * Restores the profile of the simulated card after connectSoftwareAdd.
+     */
+    public void restoreProfile() {
+        OperationSupport.getInstance().DEFERRED_INITIALIZATION = false;
+        OperationSupport.getInstance().setCard(JCMint.CARD_TYPE);
+    }
+
     /**
      * Convenience method for connecting and sending
      * @param cmd
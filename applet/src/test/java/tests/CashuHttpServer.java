@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import cz.muni.fi.crocs.rcard.client.CardManager;
 import cz.muni.fi.crocs.rcard.client.CardType;
 import cz.muni.fi.crocs.rcard.client.RunConfig;
+import jcmint.Consts;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.spec.ECParameterSpec;
 import org.bouncycastle.math.ec.ECPoint;
@@ -26,6 +27,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * HTTP server interface for JCMint operations.
@@ -39,7 +43,7 @@ public class CashuHttpServer extends AbstractHandler {
     private final ProtocolManager protocolManager;
     private final int port;
 
-    private ECPoint mintKey;
+    private final ECPoint[] mintKeys = new ECPoint[Consts.MAX_AMOUNTS];  // Key of the amount 2^i at index i
     private final String KEYSET_ID = "009a1f293253e41e";
     private final String KEYSET_API_PATH = "/v1/keys/" + KEYSET_ID;
     private final String KEYSET_UNIT = "sat";
@@ -61,7 +65,13 @@ public class CashuHttpServer extends AbstractHandler {
 
     private void setup() throws Exception {
         BigInteger[] secrets = new BigInteger[1];
-        this.mintKey = protocolManager.setup(secrets);
+        protocolManager.setup(secrets);
+        // Wallets use compressed points, so the card can take and return them as they are
+        protocolManager.setCompressed(true);
+        // The card derives the keys of all power-of-two amounts, they only change with the keyset
+        for (int i = 0; i < mintKeys.length; ++i) {
+            mintKeys[i] = protocolManager.keys(i, false);
+        }
     }
 
     @Override
@@ -112,7 +122,7 @@ public class CashuHttpServer extends AbstractHandler {
                         handleMint(requestBody, result);
                         break;
                     case "/v1/swap":
-                        handleSwap(requestBody, result);
+                        handleSwap(requestBody, response, result);
                         break;
                     default:
                         response.setStatus(HttpServletResponse.SC_NOT_FOUND);
@@ -173,7 +183,9 @@ public class CashuHttpServer extends AbstractHandler {
 
     private void handleKeys(ObjectNode result) {
         ObjectNode keys = objectMapper.createObjectNode();
-        keys.put("1", Hex.toHexString(mintKey.getEncoded(true)));
+        for (int i = 0; i < mintKeys.length; ++i) {
+            keys.put(Long.toUnsignedString(1L << i), Hex.toHexString(mintKeys[i].getEncoded(true)));
+        }
 
         ObjectNode defaultKeyset = objectMapper.createObjectNode();
         defaultKeyset.put("id", KEYSET_ID);
@@ -196,60 +208,102 @@ public class CashuHttpServer extends AbstractHandler {
     }
 
     private void handleMint(JsonNode request, ObjectNode result) throws Exception {
-        Iterator<JsonNode> outputs = request.withArray("outputs").elements();
-        ArrayNode signaturesArray = objectMapper.createArrayNode();
-        while (outputs.hasNext()) {
-            ObjectNode output = outputs.next().deepCopy();
-
-            byte[] challengeBytes = Hex.decode(output.get("B_").asText());
-            ECPoint challenge = ecSpec.getCurve().decodePoint(challengeBytes);
+        ArrayList<JsonNode> outputs = new ArrayList<>();
+        request.withArray("outputs").elements().forEachRemaining(outputs::add);
 
-            byte[] proof = protocolManager.issueSingleDLEQ(challenge);
-            ECPoint signature = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(proof, 0, 65));
-            String C_ = Hex.toHexString(signature.getEncoded(true));
+        // Sign all outputs of an amount in as few APDUs as possible, so that the card derives each key once
+        Map<Integer, List<Integer>> byAmount = new TreeMap<>();
+        for (int i = 0; i < outputs.size(); ++i) {
+            byAmount.computeIfAbsent(amountIndex(outputs.get(i)), amount -> new ArrayList<>()).add(i);
+        }
+        byte[][] proofs = new byte[outputs.size()][];
+        for (Map.Entry<Integer, List<Integer>> group : byAmount.entrySet()) {
+            List<Integer> indices = group.getValue();
+            ECPoint[] challenges = new ECPoint[indices.size()];
+            for (int i = 0; i < challenges.length; ++i) {
+                byte[] challengeBytes = Hex.decode(outputs.get(indices.get(i)).get("B_").asText());
+                challenges[i] = ecSpec.getCurve().decodePoint(challengeBytes);
+            }
+            byte[][] groupProofs = protocolManager.issueBatch(challenges, true, group.getKey());
+            for (int i = 0; i < challenges.length; ++i) {
+                proofs[indices.get(i)] = groupProofs[i];
+            }
+        }
 
-            String e = Hex.toHexString(Arrays.copyOfRange(proof, 65, 65 + 32));
-            String s = Hex.toHexString(Arrays.copyOfRange(proof, 65 + 32, 65 + 32 + 32));
-            ObjectNode dleqObj = objectMapper.createObjectNode();
-            dleqObj.put("e", e);
-            dleqObj.put("s", s);
+        result.set("signatures", signatures(outputs, proofs));
+    }
 
-            ObjectNode signatureObj = objectMapper.createObjectNode();
-            signatureObj.put("id", output.get("id").asText());
-            signatureObj.put("amount", output.get("amount").asInt());
-            signatureObj.put("C_", C_);
-            signatureObj.set("dleq", dleqObj);
+    private void handleSwap(JsonNode request, HttpServletResponse response, ObjectNode result) throws Exception {
+        ArrayList<JsonNode> inputs = new ArrayList<>();
+        request.withArray("inputs").elements().forEachRemaining(inputs::add);
+        ArrayList<JsonNode> outputs = new ArrayList<>();
+        request.withArray("outputs").elements().forEachRemaining(outputs::add);
+
+        // Splitting the swap into several commands could spend some inputs and then fail, so it is rejected
+        if (inputs.size() > Consts.MAX_BATCH || outputs.size() > Consts.MAX_BATCH) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            result.put("error", "Swap of " + inputs.size() + " inputs for " + outputs.size()
+                    + " outputs exceeds " + Consts.MAX_BATCH + " of either, the card swaps at most that atomically");
+            return;
+        }
 
-            signaturesArray.add(signatureObj);
+        byte[][] secrets = new byte[inputs.size()][];
+        ECPoint[] tokens = new ECPoint[inputs.size()];
+        int[] amounts = new int[inputs.size()];
+        for (int i = 0; i < secrets.length; ++i) {
+            secrets[i] = inputs.get(i).get("secret").asText().getBytes(StandardCharsets.UTF_8);
+            tokens[i] = ecSpec.getCurve().decodePoint(Hex.decode(inputs.get(i).get("C").asText()));
+            amounts[i] = amountIndex(inputs.get(i));
         }
-        result.set("signatures", signaturesArray);
+        ECPoint[] challenges = new ECPoint[outputs.size()];
+        int[] outputAmounts = new int[outputs.size()];
+        for (int i = 0; i < challenges.length; ++i) {
+            challenges[i] = ecSpec.getCurve().decodePoint(Hex.decode(outputs.get(i).get("B_").asText()));
+            outputAmounts[i] = amountIndex(outputs.get(i));
+        }
+
+        // The card spends all inputs and signs all outputs in one command, checking that they balance
+        byte[][] proofs = protocolManager.swapBatchDLEQ(secrets, tokens, amounts, challenges, outputAmounts);
+
+        result.set("signatures", signatures(outputs, proofs));
     }
 
-    private void handleSwap(JsonNode request, ObjectNode result) throws Exception {
+    /**
+     * Returns the index i of the power-of-two amount 2^i of a proof or blinded message.
+     */
+    private static int amountIndex(JsonNode item) {
+        BigInteger amount = item.get("amount").bigIntegerValue();
+        if (amount.bitCount() != 1 || amount.bitLength() > Consts.MAX_AMOUNTS)
+            throw new IllegalArgumentException("Amount is not a power of two: " + amount);
+        return amount.getLowestSetBit();
+    }
 
-        Iterator<JsonNode> inputs = request.withArray("inputs").elements();
-        Iterator<JsonNode> outputs = request.withArray("outputs").elements();
+    /**
+     * Builds the blind signatures with their DLEQ proofs from [C_][e][s] card responses.
+     */
+    private ArrayNode signatures(ArrayList<JsonNode> outputs, byte[][] proofs) {
         ArrayNode signaturesArray = objectMapper.createArrayNode();
-        while (outputs.hasNext()) {
-            ObjectNode input = inputs.next().deepCopy();
-            ObjectNode output = outputs.next().deepCopy();
-
-            String secret = input.get("secret").asText();
-            byte[] secretBytes = secret.getBytes(StandardCharsets.UTF_8);
-            byte[] C = Hex.decode(input.get("C").asText());
-            ECPoint token = ecSpec.getCurve().decodePoint(C);
-            byte[] challengeBytes = Hex.decode(output.get("B_").asText());
-            ECPoint challenge = ecSpec.getCurve().decodePoint(challengeBytes);
+        for (int i = 0; i < proofs.length; ++i) {
+            JsonNode output = outputs.get(i);
+            byte[] proof = proofs[i];
+            int size = proof.length - 32 - 32;
+            ECPoint signature = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(proof, 0, size));
+            String C_ = Hex.toHexString(signature.getEncoded(true));
 
-            ECPoint newToken = protocolManager.swapSingle(secretBytes, token, challenge, null);
+            String e = Hex.toHexString(Arrays.copyOfRange(proof, size, size + 32));
+            String s = Hex.toHexString(Arrays.copyOfRange(proof, size + 32, size + 32 + 32));
+            ObjectNode dleqObj = objectMapper.createObjectNode();
+            dleqObj.put("e", e);
+            dleqObj.put("s", s);
 
-            String C_ = Hex.toHexString(newToken.getEncoded(true));
             ObjectNode signatureObj = objectMapper.createObjectNode();
             signatureObj.put("id", output.get("id").asText());
-            signatureObj.put("amount", output.get("amount").asInt());
+            signatureObj.set("amount", output.get("amount"));
             signatureObj.put("C_", C_);
+            signatureObj.set("dleq", dleqObj);
+
             signaturesArray.add(signatureObj);
         }
-        result.set("signatures", signaturesArray);
+        return signaturesArray;
     }
 }
\ No newline at end of file
@@ -3,11 +3,27 @@ package tests;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import cz.muni.fi.crocs.rcard.client.CardType;
 import cz.muni.fi.crocs.rcard.client.Util;
+import javacard.framework.JCSystem;
+import javacard.security.ECPrivateKey;
+import javacard.security.ECPublicKey;
+import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
+import javacard.security.RandomData;
 import jcmint.Consts;
+import jcmint.HexDigest;
+import jcmint.HexUtil;
+import jcmint.JCMint;
+import jcmint.KeyDerivation;
+import jcmint.Keyset;
+import jcmint.Ledger;
+import jcmint.jcmathlib;
 import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.encoders.Hex;
 import org.junit.jupiter.api.*;
 
 public class PerformanceTest extends BaseTest {
@@ -106,6 +122,216 @@ public class PerformanceTest extends BaseTest {
         }
     }
 
+    @Test
+    public void measureVerifyContext() throws Exception {
+        // Verify and redeem with two parties, with the verification context installed in RAM and in EEPROM
+        for (byte flags : new byte[]{0, Consts.INSTALL_PERSISTENT_VERIFYING}) {
+            String fileName = "verify_context_" + (flags == 0 ? "transient" : "persistent") + ".csv";
+            PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+            ProtocolManager pm = new ProtocolManager(connect(installData(Consts.MAX_PARTIES, flags)), (byte) 0);
+
+            BigInteger[] privateKeys = new BigInteger[2];
+            pm.setup(privateKeys);
+            for (int i = 0; i < REPEAT; ++i) {
+                byte[] message = ProtocolManager.randomMessage(true);
+                ECPoint hashedPoint = ProtocolManager.h2c(message);
+                ECPoint token = pm.issue(hashedPoint).add(hashedPoint.multiply(privateKeys[1]));
+
+                byte[] proofs = pm.verify(message, token, hashedPoint);
+                file.printf("%d,", pm.cm.getLastTransmitTime());
+                proofs = Util.concat(proofs, ProtocolManager.computeProof(privateKeys[1], hashedPoint));
+                pm.redeem(message, token, proofs);
+                file.printf("%d\n", pm.cm.getLastTransmitTime());
+            }
+            file.close();
+        }
+    }
+
+    @Test
+    public void measureBatchProofs() throws Exception {
+        // Redeem in the 3-of-3 and 5-of-5 setups, checking other parties' proofs one by one vs. as a batch.
+        // The card batches only where it adds points in software, elsewhere both columns would time the same
+        // one-by-one check, so only measureBatchProofsSoftware runs there
+        jcmathlib.OperationSupport.getInstance().setCard(JCMint.CARD_TYPE);
+        if (jcmathlib.OperationSupport.getInstance().EC_HW_ADD) {
+            measureBatchProofsSoftware();
+            return;
+        }
+        for (int parties : new int[]{3, 5}) {
+            String fileName = "batch_proofs_" + parties + ".csv";
+            PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+            ProtocolManager pm = new ProtocolManager(connect(), (byte) 0);
+            BigInteger[] privateKeys = new BigInteger[parties];
+            pm.setup(privateKeys);
+            ECPoint[] partialKeys = new ECPoint[parties];
+            for (int i = 0; i < parties; ++i) {
+                partialKeys[i] = ProtocolManager.G.multiply(privateKeys[i]);
+            }
+
+            for (int i = 0; i < REPEAT; ++i) {
+                for (int batch = 0; batch < 2; ++batch) {
+                    byte[] message = ProtocolManager.randomMessage(true);
+                    ECPoint hashedPoint = ProtocolManager.h2c(message);
+                    ECPoint token = pm.issue(hashedPoint);
+                    for (int j = 1; j < parties; ++j) {
+                        token = token.add(hashedPoint.multiply(privateKeys[j]));
+                    }
+                    byte[] proofs = pm.verify(message, token, hashedPoint);
+                    for (int j = 1; j < parties; ++j) {
+                        proofs = Util.concat(proofs, ProtocolManager.computeProof(privateKeys[j], hashedPoint));
+                    }
+                    if (batch == 1) {
+                        proofs = ProtocolManager.batchProofs(hashedPoint, partialKeys, proofs);
+                    }
+                    pm.redeem(message, token, proofs, batch == 1);
+                    file.printf(batch == 0 ? "%d," : "%d\n", pm.cm.getLastTransmitTime());
+                }
+            }
+            file.close();
+        }
+        measureBatchProofsSoftware();
+    }
+
+    private void measureBatchProofsSoftware() throws Exception {
+        // The check of the other parties' [Y][A][B][s] proofs on cards that add points in software, which the simulator
+        // profile does not: two 2-term multiplications per party vs. one multiplication of all terms plus z*s*P.
+        // Columns: other parties, doublings and additions of each, then the time of each
+        String fileName = "batch_proofs_software.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        connect();
+        jcmathlib.OperationSupport.getInstance().EC_HW_ADD = false;
+        try {
+            jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+            jcmathlib.ECCurve curve = new jcmathlib.ECCurve(jcmathlib.SecP256k1.p, jcmathlib.SecP256k1.a,
+                    jcmathlib.SecP256k1.b, jcmathlib.SecP256k1.G, jcmathlib.SecP256k1.r, rm);
+            int maxTerms = 4 * (Consts.PROOFS_PER_COMMAND - 1) + 1;
+            jcmathlib.ECPoint[] points = new jcmathlib.ECPoint[maxTerms];
+            jcmathlib.BigNat[] scalars = new jcmathlib.BigNat[maxTerms];
+            for (int i = 0; i < maxTerms; ++i) {
+                points[i] = new jcmathlib.ECPoint(curve);
+                scalars[i] = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+            }
+            jcmathlib.ECPoint result = new jcmathlib.ECPoint(curve);
+
+            for (int others = 1; others < Consts.PROOFS_PER_COMMAND; ++others) {
+                for (int i = 0; i < REPEAT; ++i) {
+                    // Random points and scalars of the sizes the card uses: 256-bit s and e, 128-bit weights
+                    ECPoint[] terms = new ECPoint[4 * others + 1];
+                    BigInteger[] separate = new BigInteger[4 * others];
+                    BigInteger[] batch = new BigInteger[4 * others + 1];
+                    for (int j = 0; j < terms.length; ++j) {
+                        terms[j] = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+                        batch[j] = j % 2 == 0 && j < 4 * others ? ProtocolManager.randomBigInt(16) : ProtocolManager.randomBigInt(32);
+                    }
+                    for (int j = 0; j < separate.length; ++j) {
+                        separate[j] = ProtocolManager.randomBigInt(32);
+                    }
+                    BigInteger generator = ProtocolManager.randomBigInt(32);
+
+                    int separateDoublings = 0, separateAdditions = 0;
+                    for (int j = 0; j < separate.length; j += 2) {
+                        separateDoublings += Math.max(separate[j].bitLength(), separate[j + 1].bitLength()) - 1;
+                        separateAdditions += separate[j].bitCount() + separate[j + 1].bitCount() - 1;
+                    }
+                    int batchDoublings = 0, batchAdditions = -1;
+                    for (BigInteger scalar : batch) {
+                        batchDoublings = Math.max(batchDoublings, scalar.bitLength() - 1);
+                        batchAdditions += scalar.bitCount();
+                    }
+                    file.printf("%d,%d,%d,%d,%d,", others, separateDoublings, separateAdditions, batchDoublings, batchAdditions);
+
+                    // Separately: s*X - e*Y and s*P - e*Q of each party
+                    long start = System.nanoTime();
+                    for (int j = 0; j < separate.length; j += 2) {
+                        for (int k = 0; k < 2; ++k) {
+                            points[k].setW(terms[j + k].getEncoded(false), (short) 0, (short) 65);
+                            scalars[k].fromByteArray(ProtocolManager.encodeBigInteger(separate[j + k]), (short) 0, (short) 32);
+                        }
+                        result.swMultiScalar(scalars, points, (short) 2);
+                    }
+                    file.printf("%d,", (System.nanoTime() - start) / 1000);
+
+                    // As a batch: all terms at once, the generator on its own
+                    start = System.nanoTime();
+                    for (int j = 0; j < terms.length; ++j) {
+                        points[j].setW(terms[j].getEncoded(false), (short) 0, (short) 65);
+                        scalars[j].fromByteArray(ProtocolManager.encodeBigInteger(batch[j]), (short) 0, (short) 32);
+                    }
+                    result.swMultiScalar(scalars, points, (short) terms.length);
+                    scalars[0].fromByteArray(ProtocolManager.encodeBigInteger(generator), (short) 0, (short) 32);
+                    points[0].decode(curve.G, (short) 0, (short) curve.G.length);
+                    points[0].multiplication(scalars[0]);
+                    file.printf("%d\n", (System.nanoTime() - start) / 1000);
+                }
+            }
+        } finally {
+            restoreProfile();
+            file.close();
+        }
+    }
+
+    @Test
+    public void measureCompressedSwap() throws Exception {
+        // 5-party verify and swap with uncompressed, then compressed points; each followed by the swap command size
+        int parties = 5;
+        String fileName = "compressed_swap_" + parties + ".csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        ProtocolManager pm = new ProtocolManager(connect(), (byte) 0);
+        BigInteger[] privateKeys = new BigInteger[parties];
+        pm.setup(privateKeys);
+
+        for (int i = 0; i < REPEAT; ++i) {
+            for (int compressed = 0; compressed < 2; ++compressed) {
+                pm.setCompressed(compressed == 1);
+                byte[] message = ProtocolManager.randomMessage(false);
+                ECPoint hashedPoint = ProtocolManager.h2c(message);
+                ECPoint token = pm.issue(hashedPoint);
+                for (int j = 1; j < parties; ++j) {
+                    token = token.add(hashedPoint.multiply(privateKeys[j]));
+                }
+
+                byte[] proofs = pm.verify(message, token, null);
+                file.printf("%d,", pm.cm.getLastTransmitTime());
+                for (int j = 1; j < parties; ++j) {
+                    proofs = Util.concat(proofs, ProtocolManager.computeProof(privateKeys[j], hashedPoint));
+                }
+                ECPoint challenge = ProtocolManager.h2c(ProtocolManager.randomMessage(false));
+                ECPoint signature = pm.swap(message, token, challenge, proofs);
+                file.printf("%d,", pm.cm.getLastTransmitTime());
+                Assertions.assertArrayEquals(challenge.multiply(privateKeys[0]).getEncoded(false), signature.getEncoded(false));
+
+                int pointSize = compressed == 1 ? 33 : 65;
+                file.printf(compressed == 0 ? "%d," : "%d\n", message.length + pointSize + pointSize + parties * (pointSize + 32 + 32));
+            }
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureFirstCommand() throws Exception {
+        // Setup and issue right after install, without and with a warm-up first; the warm-up time itself is the last column
+        String fileName = "first_command.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        for (int i = 0; i < REPEAT; ++i) {
+            for (int warm = 0; warm < 2; ++warm) {
+                ProtocolManager pm = new ProtocolManager(connect(), (byte) 0);
+                long warmup = 0;
+                if (warm == 1) {
+                    pm.warmup();
+                    warmup = pm.cm.getLastTransmitTime();
+                }
+                pm.setup(new BigInteger[1]);
+                file.printf("%d,", pm.cm.getLastTransmitTime());
+                pm.issue(ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32)));
+                file.printf("%d,", pm.cm.getLastTransmitTime());
+                if (warm == 1) {
+                    file.printf("%d\n", warmup);
+                }
+            }
+        }
+        file.close();
+    }
+
     @Test
     public void measureNop() throws Exception {
         String fileName = "nop_0b.csv";
@@ -154,6 +380,405 @@ public class PerformanceTest extends BaseTest {
         file.close();
     }
 
+    @Test
+    public void measureIssueBatch() throws Exception {
+        // A 64 sat mint: 7 outputs with DLEQ proofs, one APDU per output vs. a single batch
+        String fileName = "issue_batch.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        ProtocolManager pm = new ProtocolManager(connect(), (byte) 0);
+        pm.setup(new BigInteger[1]);
+        ECPoint[] challenges = new ECPoint[7];
+
+        for (int i = 0; i < REPEAT; ++i) {
+            for (int j = 0; j < challenges.length; ++j) {
+                challenges[j] = ProtocolManager.h2c(ProtocolManager.randomMessage(false));
+            }
+
+            long start = System.nanoTime();
+            for (ECPoint challenge : challenges) {
+                pm.issueSingleDLEQ(challenge);
+            }
+            file.printf("%d,", (System.nanoTime() - start) / 1000000);
+
+            start = System.nanoTime();
+            pm.issueBatch(challenges, true);
+            file.printf("%d\n", (System.nanoTime() - start) / 1000000);
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureNoncePool() throws Exception {
+        // Issuance with DLEQ computing the nonce commitment inline vs. taking it from the precomputed pool
+        String fileName = "nonce_pool.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        ProtocolManager pm = new ProtocolManager(connect(), (byte) 0);
+        pm.setup(new BigInteger[1]);
+
+        for (int i = 0; i < REPEAT; ++i) {
+            ECPoint challenge = ProtocolManager.h2c(ProtocolManager.randomMessage(false));
+            Assertions.assertEquals(0, pm.precompute(0));
+            long start = System.nanoTime();
+            pm.issueSingleDLEQ(challenge);
+            file.printf("%d,", (System.nanoTime() - start) / 1000000);
+
+            Assertions.assertEquals(1, pm.precompute(1));
+            start = System.nanoTime();
+            pm.issueSingleDLEQ(challenge);
+            file.printf("%d\n", (System.nanoTime() - start) / 1000000);
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureRedeemBatch() throws Exception {
+        // MAX_BATCH proofs redeemed one APDU each vs. a single batch
+        String fileName = "redeem_batch.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        ProtocolManager pm = new ProtocolManager(connect(), (byte) 0);
+        pm.setup(new BigInteger[1]);
+        byte[][] messages = new byte[Consts.MAX_BATCH][];
+        ECPoint[] tokens = new ECPoint[messages.length];
+
+        for (int i = 0; i < REPEAT; ++i) {
+            for (int j = 0; j < messages.length; ++j) {
+                messages[j] = ProtocolManager.randomMessage(false);
+                tokens[j] = pm.issue(ProtocolManager.h2c(messages[j]));
+            }
+            long start = System.nanoTime();
+            for (int j = 0; j < messages.length; ++j) {
+                pm.redeemSingle(messages[j], tokens[j], null);
+            }
+            file.printf("%d,", (System.nanoTime() - start) / 1000000);
+
+            for (int j = 0; j < messages.length; ++j) {
+                messages[j] = ProtocolManager.randomMessage(false);
+                tokens[j] = pm.issue(ProtocolManager.h2c(messages[j]));
+            }
+            start = System.nanoTime();
+            pm.redeemBatch(messages, tokens, null);
+            file.printf("%d\n", (System.nanoTime() - start) / 1000000);
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureModSqrt() throws Exception {
+        connect();
+        jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+
+        // The (p+1)/4 shortcut is only a square root for p = 3 mod 4, so it is the baseline on secp256k1 alone
+        measureModSqrt("mod_sqrt_secp256k1.csv", new BigInteger(1, jcmathlib.SecP256k1.p), true, rm);
+
+        // Tonelli-Shanks on the Curve25519 field prime (p = 5 mod 8) where the shortcut does not apply
+        measureModSqrt("mod_sqrt_curve25519.csv", BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19)), false, rm);
+    }
+
+    private void measureModSqrt(String fileName, BigInteger pInt, boolean baseline, jcmathlib.ResourceManager rm) throws Exception {
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        jcmathlib.BigNat p = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+        p.fromByteArray(ProtocolManager.encodeBigInteger(pInt), (short) 0, (short) 32);
+        jcmathlib.ModSqrtParams params = new jcmathlib.ModSqrtParams(p, rm);
+        jcmathlib.BigNat y = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_PERSISTENT, rm);
+        byte[] buffer = new byte[32];
+
+        for (int i = 0; i < REPEAT; ++i) {
+            BigInteger n = ProtocolManager.randomBigInt(32).pow(2).mod(pInt);
+            byte[] ySq = ProtocolManager.encodeBigInteger(n);
+
+            if (baseline) {
+                y.fromByteArray(ySq, (short) 0, (short) 32);
+                long start = System.nanoTime();
+                y.modSqrt(p);
+                file.printf("%d,", (System.nanoTime() - start) / 1000);
+                y.prependZeros((short) 32, buffer, (short) 0);
+                Assertions.assertEquals(n, new BigInteger(1, buffer).pow(2).mod(pInt));
+            }
+
+            y.fromByteArray(ySq, (short) 0, (short) 32);
+            long start = System.nanoTime();
+            Assertions.assertTrue(y.modSqrt(p, params));
+            file.printf("%d\n", (System.nanoTime() - start) / 1000);
+            y.prependZeros((short) 32, buffer, (short) 0);
+            Assertions.assertEquals(n, new BigInteger(1, buffer).pow(2).mod(pInt));
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureKeyAgreement() throws Exception {
+        // Multiplication by a secret reloaded into the disposable key each time vs. a preloaded key agreement
+        String fileName = "key_agreement.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        connect();
+        jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+        jcmathlib.ECCurve curve = new jcmathlib.ECCurve(jcmathlib.SecP256k1.p, jcmathlib.SecP256k1.a,
+                jcmathlib.SecP256k1.b, jcmathlib.SecP256k1.G, jcmathlib.SecP256k1.r, rm);
+        KeyDerivation derivation = new KeyDerivation(MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false), curve.rBN);
+        Keyset keyset = new Keyset(curve, rm, Consts.MAX_PARTIES, derivation);
+        jcmathlib.ECPoint point = new jcmathlib.ECPoint(curve);
+        BigInteger secret = ProtocolManager.randomBigInt(32);
+        keyset.setup((short) 1, ProtocolManager.encodeBigInteger(secret), (short) 0, new byte[65], (short) 0);
+        byte[] buffer = new byte[65];
+
+        for (int i = 0; i < REPEAT; ++i) {
+            ECPoint challenge = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+
+            point.setW(challenge.getEncoded(false), (short) 0, (short) 65);
+            long start = System.nanoTime();
+            point.multiplication(keyset.secret);
+            file.printf("%d,", (System.nanoTime() - start) / 1000);
+
+            point.setW(challenge.getEncoded(false), (short) 0, (short) 65);
+            start = System.nanoTime();
+            keyset.multiply(point);
+            file.printf("%d\n", (System.nanoTime() - start) / 1000);
+            point.getW(buffer, (short) 0);
+            Assertions.assertArrayEquals(challenge.multiply(secret).getEncoded(false), buffer);
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureNonceGeneration() throws Exception {
+        // DLEQ nonce commitment from RandomData and a multiplication of G vs. a single key pair generation
+        String fileName = "nonce_generation.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        connect();
+        jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+        jcmathlib.ECCurve curve = new jcmathlib.ECCurve(jcmathlib.SecP256k1.p, jcmathlib.SecP256k1.a,
+                jcmathlib.SecP256k1.b, jcmathlib.SecP256k1.G, jcmathlib.SecP256k1.r, rm);
+        RandomData randomData = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+        jcmathlib.ECPoint point = new jcmathlib.ECPoint(curve);
+        jcmathlib.BigNat nonce = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        KeyPair keyPair = curve.disposablePair;
+        byte[] buffer = new byte[65];
+
+        for (int i = 0; i < REPEAT; ++i) {
+            long start = System.nanoTime();
+            randomData.nextBytes(buffer, (short) 0, (short) 32);
+            nonce.fromByteArray(buffer, (short) 0, (short) 32);
+            point.decode(curve.G, (short) 0, (short) curve.G.length);
+            point.multiplication(nonce);
+            point.getW(buffer, (short) 0);
+            file.printf("%d,", (System.nanoTime() - start) / 1000);
+
+            start = System.nanoTime();
+            keyPair.genKeyPair();
+            short length = ((ECPrivateKey) keyPair.getPrivate()).getS(buffer, (short) 0);
+            nonce.fromByteArray(buffer, (short) 0, length);
+            ((ECPublicKey) keyPair.getPublic()).getW(buffer, (short) 0);
+            file.printf("%d\n", (System.nanoTime() - start) / 1000);
+
+            byte[] scalar = new byte[32];
+            BigInteger r = new BigInteger(1, Arrays.copyOf(scalar, nonce.copyToByteArray(scalar, (short) 0)));
+            Assertions.assertArrayEquals(ProtocolManager.G.multiply(r).getEncoded(false), buffer);
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureNonceCommitment() throws Exception {
+        // DLEQ issuance and verification latency with the nonce mode of the JCMint.CARD_TYPE profile; run on each card
+        jcmathlib.OperationSupport.getInstance().setCard(JCMint.CARD_TYPE);
+        String fileName = "nonce_commitment_" + (jcmathlib.OperationSupport.getInstance().EC_GEN_PAIR ? "keygen" : "multiply") + ".csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        ProtocolManager pm = new ProtocolManager(connect(), (byte) 0);
+
+        BigInteger[] privateKeys = new BigInteger[1];
+        pm.setup(privateKeys);
+        for (int i = 0; i < REPEAT; ++i) {
+            byte[] message = ProtocolManager.randomMessage(true);
+            ECPoint hashedPoint = ProtocolManager.h2c(message);
+            ECPoint token = pm.issue(hashedPoint);
+
+            pm.issueSingleDLEQ(hashedPoint);
+            file.printf("%d,", pm.cm.getLastTransmitTime());
+            pm.verify(message, token, hashedPoint);
+            file.printf("%d\n", pm.cm.getLastTransmitTime());
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureMultiScalar() throws Exception {
+        // Linear combinations of 2 and 4 terms: separate double-and-add per term vs. one shared doubling chain (Straus).
+        // Columns: terms, doublings and additions of each, then times of the current code, the hardware and the software path
+        String fileName = "multi_scalar.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        connect();
+        jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+        jcmathlib.ECCurve curve = new jcmathlib.ECCurve(jcmathlib.SecP256k1.p, jcmathlib.SecP256k1.a,
+                jcmathlib.SecP256k1.b, jcmathlib.SecP256k1.G, jcmathlib.SecP256k1.r, rm);
+        jcmathlib.ECPoint[] points = new jcmathlib.ECPoint[4];
+        jcmathlib.BigNat[] scalars = new jcmathlib.BigNat[4];
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = new jcmathlib.ECPoint(curve);
+            scalars[i] = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        }
+        jcmathlib.ECPoint term = new jcmathlib.ECPoint(curve);
+        jcmathlib.ECPoint result = new jcmathlib.ECPoint(curve);
+        byte[] buffer = new byte[65];
+
+        for (short terms : new short[]{2, 4}) {
+            for (int i = 0; i < REPEAT; ++i) {
+                ECPoint expected = null;
+                int separateDoublings = 0, separateAdditions = terms - 1, sharedDoublings = 0, sharedAdditions = -1;
+                for (int j = 0; j < terms; ++j) {
+                    BigInteger scalar = ProtocolManager.randomBigInt(32);
+                    ECPoint point = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+                    points[j].setW(point.getEncoded(false), (short) 0, (short) 65);
+                    scalars[j].fromByteArray(ProtocolManager.encodeBigInteger(scalar), (short) 0, (short) 32);
+                    expected = expected == null ? point.multiply(scalar) : expected.add(point.multiply(scalar));
+
+                    separateDoublings += scalar.bitLength() - 1;
+                    separateAdditions += scalar.bitCount() - 1;
+                    sharedDoublings = Math.max(sharedDoublings, scalar.bitLength() - 1);
+                    sharedAdditions += scalar.bitCount();
+                }
+                file.printf("%d,%d,%d,%d,%d,", terms, separateDoublings, separateAdditions, sharedDoublings, sharedAdditions);
+
+                long start = System.nanoTime();
+                for (int j = 0; j < terms; ++j) {
+                    term.copy(points[j]);
+                    term.multiplication(scalars[j]);
+                    if (j == 0) {
+                        result.copy(term);
+                    } else {
+                        result.add(term);
+                    }
+                }
+                file.printf("%d,", (System.nanoTime() - start) / 1000);
+
+                start = System.nanoTime();
+                result.hwMultiScalar(scalars, points, terms);
+                file.printf("%d,", (System.nanoTime() - start) / 1000);
+                result.getW(buffer, (short) 0);
+                Assertions.assertArrayEquals(expected.getEncoded(false), buffer);
+
+                start = System.nanoTime();
+                result.swMultiScalar(scalars, points, terms);
+                file.printf("%d\n", (System.nanoTime() - start) / 1000);
+                result.getW(buffer, (short) 0);
+                Assertions.assertArrayEquals(expected.getEncoded(false), buffer);
+            }
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureFixedBase() throws Exception {
+        // Multiplications of G via the key agreement vs. a comb table of 2 to 6 teeth.
+        // Columns: teeth, table bytes, EEPROM bytes reported by the allocator, then times of the generic and the table path
+        String fileName = "fixed_base.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        connect();
+        jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+        jcmathlib.ECCurve curve = new jcmathlib.ECCurve(jcmathlib.SecP256k1.p, jcmathlib.SecP256k1.a,
+                jcmathlib.SecP256k1.b, jcmathlib.SecP256k1.G, jcmathlib.SecP256k1.r, rm);
+        jcmathlib.ECPoint point = new jcmathlib.ECPoint(curve);
+        jcmathlib.BigNat scalar = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        byte[] buffer = new byte[65];
+
+        for (short teeth = 2; teeth <= 6; ++teeth) {
+            short allocated = rm.memAlloc.getAllocatedInEEPROM();
+            jcmathlib.FixedBaseTable table = new jcmathlib.FixedBaseTable(curve, curve.G, teeth, point);
+            Assertions.assertEquals(jcmathlib.FixedBaseTable.length(curve, teeth), table.length());
+
+            for (int i = 0; i < REPEAT; ++i) {
+                BigInteger k = ProtocolManager.randomBigInt(32);
+                scalar.fromByteArray(ProtocolManager.encodeBigInteger(k), (short) 0, (short) 32);
+                file.printf("%d,%d,%d,", teeth, table.length(), rm.memAlloc.getAllocatedInEEPROM() - allocated);
+
+                long start = System.nanoTime();
+                point.decode(curve.G, (short) 0, (short) curve.G.length);
+                point.multiplication(scalar);
+                file.printf("%d,", (System.nanoTime() - start) / 1000);
+
+                start = System.nanoTime();
+                table.multiply(scalar, point);
+                file.printf("%d\n", (System.nanoTime() - start) / 1000);
+                point.getW(buffer, (short) 0);
+                Assertions.assertArrayEquals(ProtocolManager.G.multiply(k).getEncoded(false), buffer);
+            }
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureHexDigest() throws Exception {
+        // Hex transcript of four points as in a NUT-12 DLEQ proof: one update per hex character vs. a block buffer
+        String fileName = "hex_digest.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        connect();
+        MessageDigest md = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        HexDigest hexDigest = new HexDigest(md);
+        byte[] expected = new byte[32];
+        byte[] digest = new byte[32];
+
+        for (int i = 0; i < REPEAT; ++i) {
+            byte[][] points = new byte[4][];
+            for (int j = 0; j < points.length; ++j) {
+                points[j] = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32)).getEncoded(false);
+            }
+
+            long start = System.nanoTime();
+            md.reset();
+            for (byte[] point : points) {
+                HexUtil.mdHexString(md, point, (short) 0, (short) point.length);
+            }
+            md.doFinal(expected, (short) 0, (short) 0, expected, (short) 0);
+            file.printf("%d,", (System.nanoTime() - start) / 1000);
+
+            start = System.nanoTime();
+            hexDigest.reset();
+            for (byte[] point : points) {
+                hexDigest.update(point, (short) 0, (short) point.length);
+            }
+            hexDigest.doFinal(digest, (short) 0);
+            file.printf("%d\n", (System.nanoTime() - start) / 1000);
+            Assertions.assertArrayEquals(expected, digest);
+        }
+        file.close();
+    }
+
+    @Test
+    public void measureLedger() throws Exception {
+        // Average lookup time of spent (hit) and unspent (miss) secrets at each fill level of the ledger
+        String fileName = "ledger_lookup.csv";
+        PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
+        Ledger ledger = new Ledger(Consts.LEDGER_CAPACITY);
+        byte[][] spent = new byte[Consts.LEDGER_CAPACITY * 3 / 4][];
+
+        for (int fill = 0; fill < spent.length; ++fill) {
+            long hit = 0;
+            long miss = 0;
+            for (int i = 0; i < REPEAT; ++i) {
+                if (fill > 0) {
+                    byte[] message = spent[i % fill];
+                    long start = System.nanoTime();
+                    Assertions.assertTrue(ledger.contains(message, (short) 0));
+                    hit += System.nanoTime() - start;
+                }
+                byte[] message = randomSecret();
+                long start = System.nanoTime();
+                Assertions.assertFalse(ledger.contains(message, (short) 0));
+                miss += System.nanoTime() - start;
+            }
+            file.printf("%d,%d,%d\n", fill, hit / REPEAT, miss / REPEAT);
+
+            spent[fill] = randomSecret();
+            ledger.append(spent[fill], (short) 0);
+        }
+        file.close();
+    }
+
+    private static byte[] randomSecret() {
+        // Cashu secrets are hex strings, the ledger keeps their first 32 bytes
+        return Hex.toHexString(ProtocolManager.encodeBigInteger(ProtocolManager.randomBigInt(32)))
+                .substring(0, 32).getBytes(StandardCharsets.US_ASCII);
+    }
+
     public void verifySwap(boolean precomputed, int parties) throws Exception {
         String fileName = "verify_swap_" + parties + (precomputed ? "_precomputed" : "") + ".csv";
         PrintWriter file = new PrintWriter(new FileWriter(fileName, false));
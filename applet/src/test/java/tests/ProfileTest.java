@@ -0,0 +1,132 @@
+package tests;
+
+import cz.muni.fi.crocs.rcard.client.CardType;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import jcmint.jcmathlib;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.jupiter.api.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the code paths of other card profiles, reached by changing the jcmathlib profile the simulated
+ * applet shares with the tests. They run in their own JVM (the profileTests task), so that a changed profile
+ * never leaks into AppletTest.
+ */
+@Tag("profile")
+public class ProfileTest extends BaseTest {
+
+    public ProfileTest() {
+        // Use local JavaCard simulator for testing
+        setCardType(CardType.JCARDSIMLOCAL);
+        // Don't simulate stateful connections (fresh connection each test)
+        setSimulateStateful(false);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        restoreProfile();
+    }
+
+    /**
+     * Tests batch verification on cards that add points in software, where all proofs share one multi-scalar multiplication.
+     */
+    @Test
+    public void testBatchProofsSoftware() throws Exception {
+        new AppletTest().verifyBatchProofs(this::connectSoftwareAdd);
+    }
+
+    /**
+     * Tests the interleaved (Straus) multi-scalar multiplication of cards that add points in software,
+     * which the simulator profile never reaches, against the sum of separate products.
+     */
+    @Test
+    public void testMultiScalarSoftware() throws Exception {
+        connect();
+        jcmathlib.OperationSupport.getInstance().EC_HW_ADD = false;
+        jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+        jcmathlib.ECCurve curve = new jcmathlib.ECCurve(jcmathlib.SecP256k1.p, jcmathlib.SecP256k1.a,
+                jcmathlib.SecP256k1.b, jcmathlib.SecP256k1.G, jcmathlib.SecP256k1.r, rm);
+        jcmathlib.ECPoint[] points = new jcmathlib.ECPoint[4];
+        jcmathlib.BigNat[] scalars = new jcmathlib.BigNat[4];
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = new jcmathlib.ECPoint(curve);
+            scalars[i] = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        }
+        jcmathlib.ECPoint result = new jcmathlib.ECPoint(curve);
+        byte[] actual = new byte[65];
+
+        for (short count = 1; count <= points.length; ++count) {
+            for (int repeat = 0; repeat < 4; ++repeat) {
+                ECPoint expected = null;
+                for (int i = 0; i < count; ++i) {
+                    // Scalars of different lengths, as the 128-bit weights next to full scalars of a batch check
+                    BigInteger scalar = ProtocolManager.randomBigInt(i % 2 == 0 ? 32 : 16);
+                    ECPoint point = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+                    points[i].setW(point.getEncoded(false), (short) 0, (short) 65);
+                    scalars[i].fromByteArray(ProtocolManager.encodeBigInteger(scalar), (short) 0, (short) 32);
+                    expected = expected == null ? point.multiply(scalar) : expected.add(point.multiply(scalar));
+                }
+
+                result.multiScalar(scalars, points, count);
+                result.getW(actual, (short) 0);
+                Assertions.assertArrayEquals(expected.getEncoded(false), actual);
+            }
+        }
+
+        // A repeated term is doubled inside the shared chain
+        BigInteger scalar = ProtocolManager.randomBigInt(32);
+        ECPoint point = ProtocolManager.G.multiply(ProtocolManager.randomBigInt(32));
+        for (int i = 0; i < 2; ++i) {
+            points[i].setW(point.getEncoded(false), (short) 0, (short) 65);
+            scalars[i].fromByteArray(ProtocolManager.encodeBigInteger(scalar), (short) 0, (short) 32);
+        }
+        result.multiScalar(scalars, points, (short) 2);
+        result.getW(actual, (short) 0);
+        Assertions.assertArrayEquals(point.multiply(scalar).add(point.multiply(scalar)).getEncoded(false), actual);
+    }
+
+    @Test
+    public void testFixedBaseTable() throws Exception {
+        connect();
+        jcmathlib.ResourceManager rm = new jcmathlib.ResourceManager((short) 256);
+        jcmathlib.ECCurve curve = new jcmathlib.ECCurve(jcmathlib.SecP256k1.p, jcmathlib.SecP256k1.a,
+                jcmathlib.SecP256k1.b, jcmathlib.SecP256k1.G, jcmathlib.SecP256k1.r, rm);
+        jcmathlib.BigNat scalar = new jcmathlib.BigNat((short) 32, JCSystem.MEMORY_TYPE_TRANSIENT_RESET, rm);
+        jcmathlib.ECPoint result = new jcmathlib.ECPoint(curve);
+        byte[] actual = new byte[65];
+
+        BigInteger r = new BigInteger(1, jcmathlib.SecP256k1.r);
+        BigInteger top = BigInteger.ONE.shiftLeft(255);
+        List<BigInteger> scalars = new ArrayList<>(Arrays.asList(
+                BigInteger.ONE, BigInteger.valueOf(2), r.subtract(BigInteger.ONE), r.subtract(BigInteger.valueOf(2)),
+                top, top.add(BigInteger.ONE), top.subtract(BigInteger.ONE)));
+        for (int i = 0; i < 8; ++i) {
+            scalars.add(ProtocolManager.randomBigInt(32).mod(r));
+            scalars.add(ProtocolManager.randomBigInt(32).setBit(255).mod(r));
+        }
+
+        // Both additions, the card the table is enabled for has no hardware one
+        for (boolean hwAdd : new boolean[]{true, false}) {
+            jcmathlib.OperationSupport.getInstance().EC_HW_ADD = hwAdd;
+            for (short teeth = 1; teeth <= 5; ++teeth) {
+                jcmathlib.FixedBaseTable table = new jcmathlib.FixedBaseTable(curve, curve.G, teeth, result);
+                for (BigInteger k : scalars) {
+                    scalar.fromByteArray(ProtocolManager.encodeBigInteger(k), (short) 0, (short) 32);
+                    table.multiply(scalar, result);
+                    result.getW(actual, (short) 0);
+                    Assertions.assertArrayEquals(ProtocolManager.G.multiply(k).getEncoded(false), actual);
+                }
+
+                // G * 0 is the point at infinity, which the table rejects instead of returning
+                scalar.zero();
+                ISOException e = Assertions.assertThrows(ISOException.class, () -> table.multiply(scalar, result));
+                Assertions.assertEquals(jcmathlib.ReturnCodes.SW_ECPOINT_INVALID, e.getReason());
+            }
+        }
+    }
+}
@@ -7,14 +7,28 @@ import jcmint.Consts;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.spec.ECParameterSpec;
 import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.encoders.Hex;
 import org.junit.jupiter.api.Assertions;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Protocol manager for communicating with the JCMint smart card applet.
@@ -33,6 +47,25 @@ public class ProtocolManager {
     // Index of this card in multi-party setup
     private byte card_idx;
 
+    // Whether points on the wire are compressed in the current card session
+    private boolean compressed = false;
+
+    // Parties needed to sign with Shamir-shared secrets, 0 if every party signs
+    private int threshold = 0;
+
+    /**
+     * Proofs of the parties that sign a token in threshold mode.
+     */
+    public static class SignerProofs {
+        public final int signers;    // Bitmap of the signing parties
+        public final byte[] proofs;  // Their proofs in index order
+
+        public SignerProofs(int signers, byte[] proofs) {
+            this.signers = signers;
+            this.proofs = proofs;
+        }
+    }
+
     /**
      * Creates a new protocol manager for communicating with a specific card.
      * @param cm CardManager for APDU communication
@@ -85,10 +118,237 @@ public class ProtocolManager {
         Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
         
         // Card should return the same combined mint key
+        Assertions.assertArrayEquals(mintKey.getEncoded(false), responseAPDU.getData());
+        threshold = 0;
+        return mintKey;
+    }
+
+    /**
+     * Sets up a t-of-n mint with Shamir-shared secrets: party i gets the share f(i + 1) of a random
+     * polynomial f of degree threshold - 1, and the mint secret is f(0).
+     *
+     * @param shares Array to store the generated shares of all parties
+     * @param threshold Number of parties needed to sign
+     * @return The mint public key f(0) * G
+     */
+    public ECPoint setup(BigInteger[] shares, int threshold) throws Exception {
+        ECPoint[] points = deal(shares, threshold);
+        byte[] data = encodeBigInteger(shares[card_idx]);
+        for (ECPoint point : points) {
+            data = Util.concat(data, point.getEncoded(false));
+        }
+        data = Util.concat(data, new byte[]{(byte) threshold});
+
+        CommandAPDU cmd = new CommandAPDU(
+                Consts.CLA_JCMINT,
+                Consts.INS_SETUP,
+                card_idx,                    // P1: This card's index
+                (byte) shares.length,        // P2: Number of parties
+                data
+        );
+        ResponseAPDU responseAPDU = cm.transmit(cmd);
+        Assertions.assertNotNull(responseAPDU);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+
+        ECPoint mintKey = combine(points, (1 << threshold) - 1);
+        Assertions.assertArrayEquals(mintKey.getEncoded(false), responseAPDU.getData());
+        this.threshold = threshold;
+        return mintKey;
+    }
+
+    /**
+     * Deals Shamir shares of a fresh random secret f(0): party i gets the share f(i + 1) of a random
+     * polynomial f of degree threshold - 1.
+     *
+     * @param shares Array to store the generated shares of all parties
+     * @param threshold Number of parties needed to sign
+     * @return The public keys of the shares by party index
+     */
+    private static ECPoint[] deal(BigInteger[] shares, int threshold) {
+        BigInteger n = ecSpec.getN();
+        BigInteger[] coefficients = new BigInteger[threshold];
+        for (int i = 0; i < threshold; ++i) {
+            coefficients[i] = randomBigInt(32).mod(n);
+        }
+
+        ECPoint[] points = new ECPoint[shares.length];
+        for (int i = 0; i < shares.length; ++i) {
+            BigInteger x = BigInteger.valueOf(i + 1);
+            shares[i] = BigInteger.ZERO;
+            for (int j = threshold - 1; j >= 0; --j) {
+                shares[i] = shares[i].multiply(x).add(coefficients[j]).mod(n);
+            }
+            points[i] = ecSpec.getG().multiply(shares[i]);
+        }
+        return points;
+    }
+
+    /**
+     * Computes the Lagrange coefficient at 0 of a party for a set of signers, with party i at x = i + 1.
+     *
+     * @param party Index of the party
+     * @param signers Bitmap of the signing parties
+     */
+    public static BigInteger lagrange(int party, int signers) {
+        BigInteger n = ecSpec.getN();
+        BigInteger numerator = BigInteger.ONE;
+        BigInteger denominator = BigInteger.ONE;
+        for (int j = 0; j < 32; ++j) {
+            if (j != party && (signers & (1 << j)) != 0) {
+                numerator = numerator.multiply(BigInteger.valueOf(j + 1));
+                denominator = denominator.multiply(BigInteger.valueOf(j - party));
+            }
+        }
+        return numerator.multiply(denominator.mod(n).modInverse(n)).mod(n);
+    }
+
+    /**
+     * Combines the partial signatures of a set of signers of a t-of-n mint into the signature of the mint.
+     *
+     * @param partials Partial signatures by party index, only those of signers are read
+     * @param signers Bitmap of the signing parties
+     */
+    public static ECPoint combine(ECPoint[] partials, int signers) {
+        ECPoint result = null;
+        for (int i = 0; i < partials.length; ++i) {
+            if ((signers & (1 << i)) != 0) {
+                ECPoint term = partials[i].multiply(lagrange(i, signers));
+                result = result == null ? term : result.add(term);
+            }
+        }
+        return result.normalize();
+    }
+
+    /**
+     * Asks the other parties of a t-of-n mint for their proofs concurrently and keeps the first threshold - 1
+     * that answer, so that a slow or offline party does not delay the swap. Parties that fail are skipped.
+     *
+     * @param proof Proof of this card from verify
+     * @param others Proof requests of the other parties by index, the one at this card's index is ignored
+     * @return The signers and their proofs, including this card
+     */
+    public SignerProofs fastestProofs(byte[] proof, List<Callable<byte[]>> others) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(others.size());
+        CompletionService<byte[]> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<byte[]>, Integer> parties = new HashMap<>();
+        try {
+            for (int i = 0; i < others.size(); ++i) {
+                if (i != card_idx) {
+                    parties.put(completion.submit(others.get(i)), i);
+                }
+            }
+
+            byte[][] proofs = new byte[others.size()][];
+            proofs[card_idx] = proof;
+            int signers = 1 << card_idx;
+            for (int answered = 1, pending = parties.size(); answered < threshold; --pending) {
+                if (pending == 0) {
+                    throw new IllegalStateException("Fewer than " + threshold + " parties answered");
+                }
+                Future<byte[]> future = completion.take();
+                try {
+                    int party = parties.get(future);
+                    proofs[party] = future.get();
+                    signers |= 1 << party;
+                    ++answered;
+                } catch (ExecutionException e) {
+                    // An unavailable party is left out
+                }
+            }
+
+            byte[] result = new byte[0];
+            for (int i = 0; i < proofs.length; ++i) {
+                if ((signers & (1 << i)) != 0) {
+                    result = Util.concat(result, proofs[i]);
+                }
+            }
+            return new SignerProofs(signers, result);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Rotates all denominations to a fresh keyset, keeping the party layout from setup.
+     * The previous keyset stays usable as the retiring keyset until the next rotation.
+     * A t-of-n mint gets fresh Shamir shares, its mint key is interpolated from any t of them.
+     *
+     * @param secrets Array to store the newly generated secrets or shares for all parties
+     * @return The combined mint public key of the new keyset
+     */
+    public ECPoint rotate(BigInteger[] secrets) throws Exception {
+        ECPoint[] points;
+        ECPoint mintKey;
+        if (threshold > 0) {
+            points = deal(secrets, threshold);
+            mintKey = combine(points, (1 << threshold) - 1);
+        } else {
+            points = new ECPoint[secrets.length];
+            mintKey = null;
+            for (int i = 0; i < secrets.length; ++i) {
+                secrets[i] = randomBigInt(32);
+                points[i] = ecSpec.getG().multiply(secrets[i]);
+                mintKey = mintKey == null ? points[i] : mintKey.add(points[i]);
+            }
+        }
+        byte[] data = encodeBigInteger(secrets[card_idx]);
+        for (ECPoint point : points) {
+            data = Util.concat(data, point.getEncoded(false));
+        }
+
+        CommandAPDU cmd = new CommandAPDU(
+                Consts.CLA_JCMINT,
+                Consts.INS_ROTATE,
+                (byte) 0,    // P1: unused
+                (byte) 0,    // P2: unused
+                data
+        );
+        ResponseAPDU responseAPDU = cm.transmit(cmd);
+        Assertions.assertNotNull(responseAPDU);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+
         Assertions.assertArrayEquals(mintKey.getEncoded(false), responseAPDU.getData());
         return mintKey;
     }
 
+    /**
+     * Fetches the mint public key of an amount from the card.
+     *
+     * @param amount Index i of the amount 2^i
+     * @param retiring Whether to read the retiring keyset instead of the active one
+     * @return The mint public key of the amount
+     */
+    public ECPoint keys(int amount, boolean retiring) throws Exception {
+        CommandAPDU cmd = new CommandAPDU(
+                Consts.CLA_JCMINT,
+                Consts.INS_KEYS,
+                (byte) 0,    // P1: unused
+                (byte) (amount | (retiring ? Consts.P2_RETIRING : 0)),  // P2: amount and keyset
+                65
+        );
+        ResponseAPDU responseAPDU = cm.transmit(cmd);
+        Assertions.assertNotNull(responseAPDU);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+
+        return ecSpec.getCurve().decodePoint(responseAPDU.getData());
+    }
+
+    /**
+     * Derives the secret of an amount from the master secret of a keyset as the card does:
+     * the master itself for amount 0, HMAC-SHA256(master, amount) mod n otherwise.
+     *
+     * @param master The secret given to setup or rotate
+     * @param amount Index i of the amount 2^i
+     * @return The secret of the amount
+     */
+    public static BigInteger deriveSecret(BigInteger master, int amount) throws Exception {
+        if (amount == 0)
+            return master;
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(encodeBigInteger(master), "HmacSHA256"));
+        return new BigInteger(1, mac.doFinal(new byte[]{(byte) amount})).mod(ecSpec.getN());
+    }
+
     /**
      * Converts arbitrary byte data to a valid elliptic curve point.
      * Uses a deterministic hash-to-curve algorithm for consistent results.
@@ -126,7 +386,7 @@ public class ProtocolManager {
                 Consts.INS_ISSUE,
                 (byte) 0,    // P1: unused
                 (byte) 0,    // P2: denomination (default 0)
-                challenge.getEncoded(false)  // Challenge point to sign
+                encode(challenge)  // Challenge point to sign
         );
         ResponseAPDU responseAPDU = cm.transmit(cmd);
         Assertions.assertNotNull(responseAPDU);
@@ -142,7 +402,7 @@ public class ProtocolManager {
                 Consts.INS_ISSUE_SINGLE_DLEQ,
                 (byte) 0,    // P1: unused
                 (byte) 0,    // P2: denomination (default 0)
-                challenge.getEncoded(false)  // Challenge point to sign
+                encode(challenge)  // Challenge point to sign
         );
         ResponseAPDU responseAPDU = cm.transmit(cmd);
         Assertions.assertNotNull(responseAPDU);
@@ -151,6 +411,110 @@ public class ProtocolManager {
         return responseAPDU.getData();
     }
 
+    /**
+     * Issues signatures on many challenge points with as few APDUs as possible.
+     * Challenges are sent in chunks of MAX_BATCH; long responses are collected with GET RESPONSE.
+     *
+     * @param challenges The challenge points to sign
+     * @param dleq Whether to request a DLEQ proof with every signature (single-party only)
+     * @return For each challenge, the signature or [C_][e][s] when proofs are requested
+     */
+    public byte[][] issueBatch(ECPoint[] challenges, boolean dleq) throws Exception {
+        return issueBatch(challenges, dleq, 0);
+    }
+
+    /**
+     * Issues signatures on many challenge points of one amount with as few APDUs as possible.
+     *
+     * @param challenges The challenge points to sign
+     * @param dleq Whether to request a DLEQ proof with every signature (single-party only)
+     * @param amount Index i of the amount 2^i of every challenge
+     * @return For each challenge, the signature or [C_][e][s] when proofs are requested
+     */
+    public byte[][] issueBatch(ECPoint[] challenges, boolean dleq, int amount) throws Exception {
+        int width = dleq ? pointSize() + 32 + 32 : pointSize();
+        byte[][] result = new byte[challenges.length][];
+        for (int start = 0; start < challenges.length; start += Consts.MAX_BATCH) {
+            int end = Math.min(start + Consts.MAX_BATCH, challenges.length);
+            byte[] data = new byte[0];
+            for (int i = start; i < end; ++i) {
+                data = Util.concat(data, encode(challenges[i]));
+            }
+
+            CommandAPDU cmd = new CommandAPDU(
+                    Consts.CLA_JCMINT,
+                    Consts.INS_ISSUE_BATCH,
+                    (byte) (dleq ? 1 : 0),  // P1: DLEQ proof flag
+                    (byte) amount,          // P2: denomination
+                    data,
+                    256                     // Le: fits readers without extended length responses
+            );
+            byte[] response = transmitChained(cmd);
+            Assertions.assertEquals((end - start) * width, response.length);
+            for (int i = start; i < end; ++i) {
+                result[i] = Arrays.copyOfRange(response, (i - start) * width, (i - start + 1) * width);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Selects the wire format of points for the rest of the card session.
+     * Setup, rotate and precomputed hashes carry uncompressed points in either format.
+     *
+     * @param compressed Whether points are sent and received as 33-byte compressed SEC1
+     */
+    public void setCompressed(boolean compressed) throws Exception {
+        CommandAPDU cmd = new CommandAPDU(
+                Consts.CLA_JCMINT,
+                Consts.INS_POINT_FORMAT,
+                compressed ? Consts.P1_COMPRESSED : (byte) 0,  // P1: point format
+                (byte) 0     // P2: unused
+        );
+        ResponseAPDU responseAPDU = cm.transmit(cmd);
+        Assertions.assertNotNull(responseAPDU);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+        this.compressed = compressed;
+    }
+
+    /**
+     * Encodes a point in the wire format of the current card session.
+     */
+    private byte[] encode(ECPoint point) {
+        return point.getEncoded(compressed);
+    }
+
+    /**
+     * Size of a point in the wire format of the current card session.
+     */
+    private int pointSize() {
+        return compressed ? 33 : 65;
+    }
+
+    /**
+     * Size of the SEC1 point encoded at the offset, told by its prefix.
+     */
+    private static int pointSize(byte[] data, int offset) {
+        return data[offset] == 0x04 ? 65 : 33;
+    }
+
+    /**
+     * Transmits a command and follows SW 61xx with GET RESPONSE until the whole response is received.
+     */
+    private byte[] transmitChained(CommandAPDU cmd) throws Exception {
+        ResponseAPDU responseAPDU = cm.transmit(cmd);
+        Assertions.assertNotNull(responseAPDU);
+        byte[] response = responseAPDU.getData();
+        while (responseAPDU.getSW1() == 0x61) {
+            int remaining = responseAPDU.getSW2() == 0 ? 256 : responseAPDU.getSW2();
+            responseAPDU = cm.transmit(new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_GET_RESPONSE, 0, 0, remaining));
+            Assertions.assertNotNull(responseAPDU);
+            response = Util.concat(response, responseAPDU.getData());
+        }
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+        return response;
+    }
+
     /**
      * Verifies ownership of a token and generates a zero-knowledge proof.
      * This proves knowledge of the secret without revealing it.
@@ -162,17 +526,24 @@ public class ProtocolManager {
      * @return Zero-knowledge proof of ownership
      */
     public byte[] verify(byte[] message, ECPoint token, ECPoint precomputed) throws Exception {
-        // Prepare command data: message + token + optional precomputed hash
-        byte[] data = Util.concat(message, token.getEncoded(false));
+        return verify(message, token, precomputed, 0);
+    }
+
+    /**
+     * Verifies a token of the amount 2^amount, which the card proves with the key derived for that amount.
+     */
+    public byte[] verify(byte[] message, ECPoint token, ECPoint precomputed, int amount) throws Exception {
+        // Prepare command data: message + token + optional precomputed hash and its counter
+        byte[] data = Util.concat(message, encode(token));
         if (precomputed != null) {
-            data = Util.concat(data, precomputed.getEncoded(false));
+            data = Util.concat(data, precomputed.getEncoded(false), new byte[]{(byte) h2cCounter(message)});
         }
         
         CommandAPDU cmd = new CommandAPDU(
                 Consts.CLA_JCMINT,
                 Consts.INS_VERIFY,
                 (byte) (precomputed == null ? 0 : 1),  // P1: precomputed flag
-                (byte) 0,                              // P2: denomination
+                (byte) amount,                         // P2: denomination
                 data
         );
         ResponseAPDU responseAPDU = cm.transmit(cmd);
@@ -195,14 +566,31 @@ public class ProtocolManager {
      * @return New token: challenge * this_mint_secret
      */
     public ECPoint swap(byte[] message, ECPoint token, ECPoint challenge, byte[] proofs) throws Exception {
-        // Prepare command data: message + old_token + new_challenge + proofs
-        byte[] data = Util.concat(message, token.getEncoded(false), challenge.getEncoded(false));
-        data = Util.concat(data, proofs);
+        return swap(message, token, challenge, proofs, false);
+    }
+
+    /**
+     * Swaps a token, optionally with proofs in the [Y][A][B][s] form that the card checks as a batch.
+     *
+     * @param batch Whether proofs were converted by batchProofs
+     */
+    public ECPoint swap(byte[] message, ECPoint token, ECPoint challenge, byte[] proofs, boolean batch) throws Exception {
+        return swap(message, token, challenge, proofs, batch, 0);
+    }
+
+    /**
+     * Swaps a token of a t-of-n mint with the proofs of a set of signers.
+     *
+     * @param signers Bitmap of the signing parties, whose proofs are given in index order
+     */
+    public ECPoint swap(byte[] message, ECPoint token, ECPoint challenge, byte[] proofs, boolean batch, int signers) throws Exception {
+        // Prepare command data: message + old_token + new_challenge + [signers] + proofs
+        byte[] data = attachProofs(Util.concat(message, encode(token), encode(challenge)), proofs, batch, signers);
         
         CommandAPDU cmd = new CommandAPDU(
                 Consts.CLA_JCMINT,
                 Consts.INS_SWAP,
-                (byte) 0,    // P1: unused
+                batch ? Consts.P1_BATCH_PROOFS : (byte) 0,  // P1: proof form
                 (byte) 0,    // P2: denomination
                 data
         );
@@ -226,13 +614,31 @@ public class ProtocolManager {
      * @return true if redemption was successful
      */
     public boolean redeem(byte[] message, ECPoint token, byte[] proofs) throws Exception {
-        // Prepare command data: message + token + proofs
-        byte[] data = Util.concat(message, token.getEncoded(false), proofs);
+        return redeem(message, token, proofs, false);
+    }
+
+    /**
+     * Redeems a token, optionally with proofs in the [Y][A][B][s] form that the card checks as a batch.
+     *
+     * @param batch Whether proofs were converted by batchProofs
+     */
+    public boolean redeem(byte[] message, ECPoint token, byte[] proofs, boolean batch) throws Exception {
+        return redeem(message, token, proofs, batch, 0);
+    }
+
+    /**
+     * Redeems a token of a t-of-n mint with the proofs of a set of signers.
+     *
+     * @param signers Bitmap of the signing parties, whose proofs are given in index order
+     */
+    public boolean redeem(byte[] message, ECPoint token, byte[] proofs, boolean batch, int signers) throws Exception {
+        // Prepare command data: message + token + [signers] + proofs
+        byte[] data = attachProofs(Util.concat(message, encode(token)), proofs, batch, signers);
         
         CommandAPDU cmd = new CommandAPDU(
                 Consts.CLA_JCMINT,
                 Consts.INS_REDEEM,
-                (byte) 0,    // P1: unused
+                batch ? Consts.P1_BATCH_PROOFS : (byte) 0,  // P1: proof form
                 (byte) 0,    // P2: denomination
                 data
         );
@@ -245,6 +651,76 @@ public class ProtocolManager {
         return true;
     }
 
+    /**
+     * Appends the proofs of all signers to a swap or redeem command, or submits them in chunks
+     * beforehand if they do not fit in one command. In threshold mode the signers bitmap precedes the proofs.
+     */
+    private byte[] attachProofs(byte[] data, byte[] proofs, boolean batch, int signers) throws Exception {
+        byte[] wire = compressed ? compressProofs(proofs, batch) : proofs;
+        if (wire.length > Consts.PROOFS_PER_COMMAND * proofLength(batch)) {
+            submitProofs(proofs, batch, Consts.PROOFS_PER_COMMAND, signers);
+            return data;
+        }
+        return threshold > 0 ? Util.concat(data, encodeSigners(signers), wire) : Util.concat(data, wire);
+    }
+
+    private static byte[] encodeSigners(int signers) {
+        return new byte[]{(byte) (signers >> 8), (byte) signers};
+    }
+
+    /**
+     * Submits the proofs of all parties for the token being verified in chunks of consecutive parties.
+     * The card checks each chunk on arrival, so that swap and redeem can then be sent without proofs.
+     *
+     * @param proofs Concatenated proofs of all parties, including this card's slot
+     * @param batch Whether proofs were converted by batchProofs
+     * @param chunkParties Number of parties per command
+     * @return Bitmap of the parties whose proofs the card has received
+     */
+    public int submitProofs(byte[] proofs, boolean batch, int chunkParties) throws Exception {
+        return submitProofs(proofs, batch, chunkParties, 0);
+    }
+
+    /**
+     * Submits the proofs of a set of signers of a t-of-n mint in chunks.
+     *
+     * @param signers Bitmap of the signing parties, whose proofs are given in index order
+     */
+    public int submitProofs(byte[] proofs, boolean batch, int chunkParties, int signers) throws Exception {
+        byte[] wire = compressed ? compressProofs(proofs, batch) : proofs;
+        int proofLength = proofLength(batch);
+        int count = wire.length / proofLength;
+        int[] parties = new int[count];
+        for (int slot = 0, party = 0; slot < count; ++party) {
+            if (threshold == 0 || (signers & (1 << party)) != 0) {
+                parties[slot++] = party;
+            }
+        }
+
+        int received = 0;
+        for (int first = 0; first < count; first += chunkParties) {
+            int end = Math.min(first + chunkParties, count);
+            byte[] data = Util.concat(new byte[]{(byte) parties[first]}, Arrays.copyOfRange(wire, first * proofLength, end * proofLength));
+            CommandAPDU cmd = new CommandAPDU(
+                    Consts.CLA_JCMINT,
+                    Consts.INS_PROOFS,
+                    batch ? Consts.P1_BATCH_PROOFS : (byte) 0,  // P1: proof form
+                    (byte) 0,    // P2: denomination
+                    threshold > 0 ? Util.concat(encodeSigners(signers), data) : data
+            );
+            ResponseAPDU responseAPDU = cm.transmit(cmd);
+            Assertions.assertNotNull(responseAPDU);
+            Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+            Assertions.assertEquals(2, responseAPDU.getData().length);
+            received = ((responseAPDU.getData()[0] & 0xff) << 8) | (responseAPDU.getData()[1] & 0xff);
+        }
+        return received;
+    }
+
+    private int proofLength(boolean batch) {
+        return batch ? 3 * pointSize() + 32 : pointSize() + 32 + 32;
+    }
+
     /**
      * Swaps a token in single-party mode (no external proofs needed).
      * Simpler version of swap for when only one mint is involved.
@@ -256,25 +732,159 @@ public class ProtocolManager {
      * @return New token: challenge * this_mint_secret
      */
     public ECPoint swapSingle(byte[] message, ECPoint token, ECPoint challenge, ECPoint precomputed) throws Exception {
-        // Prepare command data: message + old_token + new_challenge + optional precomputed
-        byte[] data = Util.concat(message, token.getEncoded(false), challenge.getEncoded(false));
+        // Return the new token
+        return ecSpec.getCurve().decodePoint(swapSingle(message, token, challenge, precomputed, false));
+    }
+
+    /**
+     * Swaps a token in single-party mode and receives the new token with a NUT-12 DLEQ proof.
+     *
+     * @param message The message being used for this swap
+     * @param token The old token being exchanged
+     * @param challenge The new challenge point for the new token
+     * @param precomputed Optional precomputed hash-to-curve result
+     * @return [C_][e][s] for the new token
+     */
+    public byte[] swapSingleDLEQ(byte[] message, ECPoint token, ECPoint challenge, ECPoint precomputed) throws Exception {
+        byte[] proof = swapSingle(message, token, challenge, precomputed, true);
+        Assertions.assertEquals(pointSize() + 32 + 32, proof.length);
+        return proof;
+    }
+
+    private byte[] swapSingle(byte[] message, ECPoint token, ECPoint challenge, ECPoint precomputed, boolean dleq) throws Exception {
+        // Prepare command data: message + old_token + new_challenge + optional precomputed and its counter
+        byte[] data = Util.concat(message, encode(token), encode(challenge));
         if (precomputed != null) {
-            data = Util.concat(data, precomputed.getEncoded(false));
+            data = Util.concat(data, precomputed.getEncoded(false), new byte[]{(byte) h2cCounter(message)});
         }
 
         CommandAPDU cmd = new CommandAPDU(
                 Consts.CLA_JCMINT,
                 Consts.INS_SWAP_SINGLE,
-                (byte) (precomputed == null ? 0 : 1),  // P1: precomputed flag
+                (byte) ((precomputed == null ? 0 : 1) | (dleq ? Consts.P1_DLEQ : 0)),  // P1: precomputed and DLEQ flags
                 (byte) 0,                              // P2: denomination
                 data
         );
         ResponseAPDU responseAPDU = cm.transmit(cmd);
         Assertions.assertNotNull(responseAPDU);
         Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
-        
-        // Return the new token
-        return ecSpec.getCurve().decodePoint(responseAPDU.getData());
+
+        return responseAPDU.getData();
+    }
+
+    /**
+     * Swaps many tokens for many new ones in a single atomic command (single-party mode).
+     *
+     * @param messages The messages of the tokens being exchanged
+     * @param tokens The old tokens being exchanged
+     * @param challenges The challenge points for the new tokens
+     * @return New tokens: challenge * this_mint_secret
+     */
+    public ECPoint[] swapBatch(byte[][] messages, ECPoint[] tokens, ECPoint[] challenges) throws Exception {
+        int width = pointSize();
+        byte[] response = transmitChained(swapBatchCommand(messages, tokens, challenges, false, compressed));
+        Assertions.assertEquals(challenges.length * width, response.length);
+
+        ECPoint[] newTokens = new ECPoint[challenges.length];
+        for (int i = 0; i < challenges.length; ++i) {
+            newTokens[i] = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(response, i * width, (i + 1) * width));
+        }
+        return newTokens;
+    }
+
+    /**
+     * Swaps many tokens for many new ones in a single atomic command, with a NUT-12 DLEQ proof for every new token.
+     *
+     * @param messages The messages of the tokens being exchanged
+     * @param tokens The old tokens being exchanged
+     * @param challenges The challenge points for the new tokens
+     * @return For each challenge, [C_][e][s]
+     */
+    public byte[][] swapBatchDLEQ(byte[][] messages, ECPoint[] tokens, ECPoint[] challenges) throws Exception {
+        int width = pointSize() + 32 + 32;
+        byte[] response = transmitChained(swapBatchCommand(messages, tokens, challenges, true, compressed));
+        Assertions.assertEquals(challenges.length * width, response.length);
+
+        byte[][] proofs = new byte[challenges.length][];
+        for (int i = 0; i < challenges.length; ++i) {
+            proofs[i] = Arrays.copyOfRange(response, i * width, (i + 1) * width);
+        }
+        return proofs;
+    }
+
+    /**
+     * Swaps many tokens of any amounts for new ones in a single atomic command, with a NUT-12 DLEQ proof for every new token.
+     * The new tokens must not be worth more than the old ones.
+     *
+     * @param messages The messages of the tokens being exchanged
+     * @param tokens The old tokens being exchanged
+     * @param amounts Index i of the amount 2^i of every old token
+     * @param challenges The challenge points for the new tokens
+     * @param outputAmounts Index i of the amount 2^i of every new token
+     * @return For each challenge, [C_][e][s]
+     */
+    public byte[][] swapBatchDLEQ(byte[][] messages, ECPoint[] tokens, int[] amounts, ECPoint[] challenges, int[] outputAmounts) throws Exception {
+        int width = pointSize() + 32 + 32;
+        byte[] response = transmitChained(swapBatchCommand(messages, tokens, amounts, challenges, outputAmounts, true, compressed));
+        Assertions.assertEquals(challenges.length * width, response.length);
+
+        byte[][] proofs = new byte[challenges.length][];
+        for (int i = 0; i < challenges.length; ++i) {
+            proofs[i] = Arrays.copyOfRange(response, i * width, (i + 1) * width);
+        }
+        return proofs;
+    }
+
+    /**
+     * Builds the batch swap command: [message_length][message][token] per input, then the challenges.
+     */
+    public static CommandAPDU swapBatchCommand(byte[][] messages, ECPoint[] tokens, ECPoint[] challenges) {
+        return swapBatchCommand(messages, tokens, challenges, false, false);
+    }
+
+    public static CommandAPDU swapBatchCommand(byte[][] messages, ECPoint[] tokens, ECPoint[] challenges, boolean dleq, boolean compressed) {
+        byte[] data = new byte[0];
+        for (int i = 0; i < messages.length; ++i) {
+            data = Util.concat(data, new byte[]{(byte) messages[i].length}, messages[i]);
+            data = Util.concat(data, tokens[i].getEncoded(compressed));
+        }
+        for (ECPoint challenge : challenges) {
+            data = Util.concat(data, challenge.getEncoded(compressed));
+        }
+
+        return new CommandAPDU(
+                Consts.CLA_JCMINT,
+                Consts.INS_SWAP_BATCH,
+                (byte) (messages.length | (dleq ? Consts.P1_DLEQ : 0)),  // P1: number of inputs and DLEQ flag
+                (byte) 0,                // P2: denomination
+                data,
+                256                      // Le: fits readers without extended length responses
+        );
+    }
+
+    /**
+     * Builds the batch swap command with amounts: [amount][message_length][message][token] per input,
+     * then [amount][challenge] per output.
+     */
+    public static CommandAPDU swapBatchCommand(byte[][] messages, ECPoint[] tokens, int[] amounts, ECPoint[] challenges, int[] outputAmounts,
+                                               boolean dleq, boolean compressed) {
+        byte[] data = new byte[0];
+        for (int i = 0; i < messages.length; ++i) {
+            data = Util.concat(data, new byte[]{(byte) amounts[i], (byte) messages[i].length}, messages[i]);
+            data = Util.concat(data, tokens[i].getEncoded(compressed));
+        }
+        for (int i = 0; i < challenges.length; ++i) {
+            data = Util.concat(data, new byte[]{(byte) outputAmounts[i]}, challenges[i].getEncoded(compressed));
+        }
+
+        return new CommandAPDU(
+                Consts.CLA_JCMINT,
+                Consts.INS_SWAP_BATCH,
+                (byte) (messages.length | Consts.P1_AMOUNTS | (dleq ? Consts.P1_DLEQ : 0)),  // P1: number of inputs, amounts and DLEQ flags
+                (byte) 0,                // P2: keyset of the inputs
+                data,
+                256                      // Le: fits readers without extended length responses
+        );
     }
 
     /**
@@ -287,10 +897,10 @@ public class ProtocolManager {
      * @return true if redemption was successful
      */
     public boolean redeemSingle(byte[] message, ECPoint token, ECPoint precomputed) throws Exception {
-        // Prepare command data: message + token + optional precomputed
-        byte[] data = Util.concat(message, token.getEncoded(false));
+        // Prepare command data: message + token + optional precomputed and its counter
+        byte[] data = Util.concat(message, encode(token));
         if (precomputed != null) {
-            data = Util.concat(data, precomputed.getEncoded(false));
+            data = Util.concat(data, precomputed.getEncoded(false), new byte[]{(byte) h2cCounter(message)});
         }
 
         CommandAPDU cmd = new CommandAPDU(
@@ -309,6 +919,122 @@ public class ProtocolManager {
         return true;
     }
 
+    /**
+     * Redeems many tokens in single-party mode, MAX_BATCH per command.
+     * Tokens that are spent or invalid are reported instead of failing the whole batch.
+     *
+     * @param messages The messages of the tokens being redeemed
+     * @param tokens The tokens being redeemed
+     * @param precomputed Optional precomputed hash-to-curve results; null or null entries compute them on the card
+     * @return For each token, whether it was redeemed
+     */
+    public boolean[] redeemBatch(byte[][] messages, ECPoint[] tokens, ECPoint[] precomputed) throws Exception {
+        boolean[] result = new boolean[messages.length];
+        for (int start = 0; start < messages.length; start += Consts.MAX_BATCH) {
+            int end = Math.min(start + Consts.MAX_BATCH, messages.length);
+            byte[] data = redeemItems(messages, tokens, precomputed, start, end);
+
+            CommandAPDU cmd = new CommandAPDU(
+                    Consts.CLA_JCMINT,
+                    Consts.INS_REDEEM_BATCH,
+                    (byte) (end - start),  // P1: number of items
+                    (byte) 0,              // P2: denomination
+                    data
+            );
+            ResponseAPDU responseAPDU = cm.transmit(cmd);
+            Assertions.assertNotNull(responseAPDU);
+            Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+            Assertions.assertEquals(1, responseAPDU.getData().length);
+
+            // Status bitmap: bit i is set if item i was redeemed
+            byte status = responseAPDU.getData()[0];
+            for (int i = start; i < end; ++i) {
+                result[i] = (status & (1 << (i - start))) != 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Redeems any number of tokens in single-party mode by streaming the items over chained commands.
+     * The item stream is cut every chunkSize bytes, regardless of item boundaries.
+     *
+     * @return Per-item result, true if the token was redeemed
+     */
+    public boolean[] redeemStream(byte[][] messages, ECPoint[] tokens, ECPoint[] precomputed, int chunkSize) throws Exception {
+        byte[] data = redeemItems(messages, tokens, precomputed, 0, messages.length);
+        boolean[] result = new boolean[messages.length];
+        int item = 0;
+        for (int start = 0; start < data.length; start += chunkSize) {
+            int end = Math.min(start + chunkSize, data.length);
+            CommandAPDU cmd = new CommandAPDU(
+                    end < data.length ? Consts.CLA_JCMINT | Consts.CLA_CHAINING : Consts.CLA_JCMINT,
+                    Consts.INS_REDEEM_BATCH,
+                    (byte) 0,
+                    (byte) 0,  // P2: denomination
+                    Arrays.copyOfRange(data, start, end)
+            );
+            ResponseAPDU responseAPDU = cm.transmit(cmd);
+            Assertions.assertNotNull(responseAPDU);
+            Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+
+            // [count][status bitmap] of the items completed by this command
+            byte[] response = responseAPDU.getData();
+            int count = response[0] & 0xff;
+            Assertions.assertEquals(1 + (count + 7) / 8, response.length);
+            for (int i = 0; i < count; ++i, ++item) {
+                result[item] = (response[1 + i / 8] & (1 << (i % 8))) != 0;
+            }
+        }
+        Assertions.assertEquals(messages.length, item);
+        return result;
+    }
+
+    private byte[] redeemItems(byte[][] messages, ECPoint[] tokens, ECPoint[] precomputed, int start, int end) throws Exception {
+        byte[] data = new byte[0];
+        for (int i = start; i < end; ++i) {
+            boolean hint = precomputed != null && precomputed[i] != null;
+            byte header = (byte) (messages[i].length | (hint ? Consts.ITEM_PRECOMPUTED : 0));
+            data = Util.concat(data, new byte[]{header}, messages[i]);
+            data = Util.concat(data, encode(tokens[i]));
+            if (hint) {
+                data = Util.concat(data, precomputed[i].getEncoded(false), new byte[]{(byte) h2cCounter(messages[i])});
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Asks the card to precompute DLEQ nonce pairs while idle.
+     *
+     * @param count Maximum number of pairs to compute (0 only reads the pool level)
+     * @return Number of pairs available in the card's pool
+     */
+    public int precompute(int count) throws Exception {
+        CommandAPDU cmd = new CommandAPDU(
+                Consts.CLA_JCMINT,
+                Consts.INS_PRECOMPUTE,
+                (byte) count,  // P1: number of pairs
+                (byte) 0,      // P2: unused
+                1
+        );
+        ResponseAPDU responseAPDU = cm.transmit(cmd);
+        Assertions.assertNotNull(responseAPDU);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+
+        return responseAPDU.getData()[0] & 0xff;
+    }
+
+    /**
+     * Asks the card to run every crypto engine once before it serves requests.
+     */
+    public void warmup() throws Exception {
+        CommandAPDU cmd = new CommandAPDU(Consts.CLA_JCMINT, Consts.INS_WARMUP, 0, 0);
+        ResponseAPDU responseAPDU = cm.transmit(cmd);
+        Assertions.assertNotNull(responseAPDU);
+        Assertions.assertEquals(ISO7816.SW_NO_ERROR & 0xffff, responseAPDU.getSW());
+    }
+
     /**
      * No-operation command for testing and benchmarking.
      * Does nothing but can be used to measure baseline communication overhead.
@@ -389,9 +1115,10 @@ public class ProtocolManager {
      */
     public static boolean verifyProof(ECPoint hashedPoint, ECPoint partialMintKey, byte[] proof) throws Exception {
         // Extract proof components
-        ECPoint verifyingPoint = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(proof, 0, 65));      // Y
-        BigInteger e = new BigInteger(1, Arrays.copyOfRange(proof, 65, 65 + 32));                      // e (challenge)
-        BigInteger s = new BigInteger(1, Arrays.copyOfRange(proof, 65 + 32, 65 + 32 + 32));           // s (response)
+        int size = pointSize(proof, 0);
+        ECPoint verifyingPoint = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(proof, 0, size));    // Y
+        BigInteger e = new BigInteger(1, Arrays.copyOfRange(proof, size, size + 32));                  // e (challenge)
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(proof, size + 32, size + 32 + 32));       // s (response)
 
         // Recompute commitment points
         ECPoint A = hashedPoint.multiply(s).subtract(verifyingPoint.multiply(e));     // A = s*X - e*Y
@@ -412,6 +1139,82 @@ public class ProtocolManager {
         return e.equals(result);
     }
 
+    /**
+     * Converts [Y][e][s] proofs of all parties into the [Y][A][B][s] form checked as a batch by the card.
+     * The commitments are recomputed from public values only: A = s*X - e*Y and B = s*G - e*Q.
+     *
+     * @param hashedPoint The hashed message point X
+     * @param partialKeys The public keys Q of all parties
+     * @param proofs Concatenated proofs of all parties
+     * @return Concatenated proofs in batch form
+     */
+    public static byte[] batchProofs(ECPoint hashedPoint, ECPoint[] partialKeys, byte[] proofs) {
+        byte[] result = new byte[0];
+        for (int i = 0, offset = 0; i < partialKeys.length; ++i) {
+            int size = pointSize(proofs, offset);
+            byte[] proof = Arrays.copyOfRange(proofs, offset, offset + size + 32 + 32);
+            offset += proof.length;
+            ECPoint verifyingPoint = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(proof, 0, size));
+            BigInteger e = new BigInteger(1, Arrays.copyOfRange(proof, size, size + 32));
+            BigInteger s = new BigInteger(1, Arrays.copyOfRange(proof, size + 32, size + 32 + 32));
+
+            ECPoint A = hashedPoint.multiply(s).subtract(verifyingPoint.multiply(e)).normalize();
+            ECPoint B = ecSpec.getG().multiply(s).subtract(partialKeys[i].multiply(e)).normalize();
+            result = Util.concat(result, Util.concat(verifyingPoint.getEncoded(false), A.getEncoded(false), B.getEncoded(false)),
+                    Arrays.copyOfRange(proof, size + 32, size + 32 + 32));
+        }
+        return result;
+    }
+
+    /**
+     * Re-encodes all points of concatenated [Y][e][s] or [Y][A][B][s] proofs in compressed form.
+     * Points that are compressed already are kept as they are.
+     *
+     * @param proofs Concatenated proofs of all parties
+     * @param batch Whether proofs are in the batch form
+     * @return Concatenated proofs with compressed points
+     */
+    public static byte[] compressProofs(byte[] proofs, boolean batch) {
+        int points = batch ? 3 : 1;
+        int scalars = batch ? 32 : 32 + 32;
+        byte[] result = new byte[0];
+        for (int offset = 0; offset < proofs.length; offset += scalars) {
+            for (int j = 0; j < points; ++j) {
+                int size = pointSize(proofs, offset);
+                ECPoint point = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(proofs, offset, offset + size));
+                result = Util.concat(result, point.getEncoded(true));
+                offset += size;
+            }
+            result = Util.concat(result, Arrays.copyOfRange(proofs, offset, offset + scalars));
+        }
+        return result;
+    }
+
+    /**
+     * Verifies a NUT-12 DLEQ proof attached to an issued signature.
+     *
+     * @param challenge The challenge point B' that was signed
+     * @param mintKey The public key A of the mint
+     * @param proof [C_][e][s] as returned by the card
+     * @return true if the proof is valid
+     */
+    public static boolean verifyIssueProof(ECPoint challenge, ECPoint mintKey, byte[] proof) throws Exception {
+        int size = pointSize(proof, 0);
+        ECPoint signature = ecSpec.getCurve().decodePoint(Arrays.copyOfRange(proof, 0, size));       // C'
+        BigInteger e = new BigInteger(1, Arrays.copyOfRange(proof, size, size + 32));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(proof, size + 32, size + 32 + 32));
+
+        ECPoint R1 = ecSpec.getG().multiply(s).subtract(mintKey.multiply(e));    // R1 = s*G - e*A
+        ECPoint R2 = challenge.multiply(s).subtract(signature.multiply(e));      // R2 = s*B' - e*C'
+
+        // e == hash(R1, R2, A, C') over the hex encodings
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (ECPoint point : new ECPoint[]{R1, R2, mintKey, signature}) {
+            md.update(Hex.toHexString(point.getEncoded(false)).getBytes(StandardCharsets.UTF_8));
+        }
+        return e.equals(new BigInteger(1, md.digest()));
+    }
+
     /**
      * Hash-to-curve implementation (client-side reference).
      * Default to maximum 256 iterations for finding valid point.
@@ -457,6 +1260,45 @@ public class ProtocolManager {
         }
     }
 
+    /**
+     * Finds the try-and-increment counter at which hash-to-curve of the input succeeds.
+     * Sent along with a precomputed point so the card skips the square root of the result.
+     *
+     * @param input The input data to hash
+     * @return The counter value of the resulting point
+     */
+    public static int h2cCounter(byte[] input) throws Exception {
+        for (int i = 1; ; ++i) {
+            try {
+                h2c(input, i);
+                return i - 1;
+            } catch (IllegalArgumentException ignored) {
+                // Needs more iterations
+            }
+        }
+    }
+
+    /**
+     * Finds the point of the input at the given try-and-increment counter, with an even y.
+     *
+     * @param input The input data to hash
+     * @param counter The counter to hash the input with
+     * @return The point, or null if the x-coordinate is not on the curve
+     */
+    public static ECPoint h2cAt(byte[] input, int counter) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(Consts.H2C_DOMAIN_SEPARATOR);
+        md.update(input);
+        byte[] prefix = md.digest();
+        md.update(prefix);
+        md.update(new byte[]{(byte) counter, 0, 0, 0});
+        try {
+            return ecSpec.getCurve().decodePoint(Util.concat(new byte[]{0x02}, md.digest()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     /**
      * Generates a random BigInteger with specified byte length.
      * Used for generating cryptographic secrets and nonces.